@@ -9,24 +9,27 @@ package com.optimyth.qaking.rules.samples.cobol;
 import com.als.cobol.rules.AbstractCobolRule;
 import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
-import com.als.core.ast.NodeVisitor;
-import com.als.core.ast.TreeNode;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.optimyth.qaking.cobol.hla.ast.CobolStatement;
-import com.optimyth.qaking.cobol.hla.ast.ProcedureDivision;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * AvoidDeepStatementNesting - Sample rule that checks for excessive nesting on different
  * control statements (IF, EVALUATE, PERFORM).
  * <p/>
- * Shows how to implement a rule using the high-level AST.
+ * Shows how to implement a rule using the high-level AST. Statements are dispatched to the rule
+ * by {@link CobolRuleDispatcher}, in a single traversal shared with other Cobol rules.
+ * Nesting is tracked with a counter per statement type (incremented when entering the statement,
+ * decremented when leaving), and each topmost statement with excessive nesting below is reported once.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 03-02-2014
  */
-public class AvoidDeepStatementNesting extends AbstractCobolRule {
+public class AvoidDeepStatementNesting extends AbstractCobolRule implements CobolRuleDispatcher.DispatchedRule {
   
   // Maximum allowed nesting for each statement
   // If you want, thresholds could be configured by rule properties...
@@ -36,24 +39,63 @@ public class AvoidDeepStatementNesting extends AbstractCobolRule {
     .put("PerformStatement", 1)
     .build();
       
-  @Override protected void visit(BaseNode root, final RuleContext ctx) {
-    ProcedureDivision pd = getProcedureDivision(ctx);
-    if(pd == null) return; // possibly a COPY without statements
-    pd.accept(new NodeVisitor() {
-      public void visit(BaseNode node) {
+  @Override public void initialize(RuleContext ctx) {
+    super.initialize(ctx);
+    CobolRuleDispatcher.register(this);
+  }
+
+  @Override public void postProcess(RuleContext ctx) {
+    CobolRuleDispatcher.unregister(this);
+    super.postProcess(ctx);
+  }
+
+  @Override protected void visit(BaseNode root, RuleContext ctx) {
+    // Statements are received from the single traversal shared with other Cobol rules
+    CobolRuleDispatcher.dispatch(this, root, ctx);
+  }
+
+  public Set<String> getNodeTypes() { return Collections.emptySet(); }
+
+  public Set<String> getHighLevelNodeTypes() { return THRESHOLDS.keySet(); }
+
+  public CobolRuleDispatcher.UnitVisitor startUnit(BaseNode root, final RuleContext ctx) {
+    // Nesting state for each statement type, updated when entering / leaving statements,
+    // so each statement is checked in constant time (no walk on its ancestors)
+    final Map<String, Nesting> nestings = Maps.newHashMapWithExpectedSize(THRESHOLDS.size());
+    for(Map.Entry<String, Integer> e : THRESHOLDS.entrySet()) {
+      nestings.put(e.getKey(), new Nesting(e.getValue()));
+    }
+
+    return new CobolRuleDispatcher.UnitVisitor() {
+      void enter(BaseNode node) {
         if (!(node instanceof CobolStatement)) {return;}
-        CobolStatement stmt = (CobolStatement)node;
-        if(THRESHOLDS.containsKey(stmt.getTypeName())) {
-          int maxAncestors = THRESHOLDS.get(stmt.getTypeName());
-          TreeNode n = TreeNode.on(stmt);
-          int ancestors = n.countAncestors(stmt.getTypeName());
-          if(ancestors > maxAncestors) {
-            // Report on the topmost statement of the same type
-            TreeNode topStatement = n.topmostAncestor(stmt.getTypeName());
-            addViolation(violation(ctx, topStatement), ctx);
-          }
+        Nesting nesting = nestings.get(node.getTypeName());
+        int ancestors = nesting.depth++;
+        if(ancestors == 0) {
+          nesting.top = node;
+          nesting.reported = false;
+        } else if(ancestors > nesting.maxAncestors && !nesting.reported) {
+          // Report (once) on the topmost statement of the same type
+          addViolation(violation(ctx, nesting.top), ctx);
+          nesting.reported = true;
         }
       }
-    });
+
+      void leave(BaseNode node) {
+        if (!(node instanceof CobolStatement)) {return;}
+        Nesting nesting = nestings.get(node.getTypeName());
+        if(--nesting.depth == 0) nesting.top = null;
+      }
+    };
+  }
+
+  // Current nesting for a statement type, with the topmost statement of that type
+  private static class Nesting {
+    private final int maxAncestors;
+    private int depth = 0;
+    private BaseNode top;
+    private boolean reported;
+
+    private Nesting(int maxAncestors) { this.maxAncestors = maxAncestors; }
   }
 }
@@ -0,0 +1,232 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.cobol;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * CallsSnapshot - On-disk snapshot of the inter-program CALL data gathered by {@link FanInFanOutCheck}
+ * (program name, CALLed programs and content hash for each source file analyzed).
+ * <p/>
+ * With the snapshot from a previous run, a source file with the same content hash does not need its CALLs
+ * resolved again. The hash covers the source file and the COPY books it includes (recursively), as dynamic
+ * CALL targets may be defined in a COPY; when a COPY book cannot be found, the source file cannot be hashed
+ * (its CALLs are always resolved, and its unit is saved without hash). In an incremental analysis,
+ * source files not analyzed in current run
+ * (but still present) contribute their remembered CALLs, so FAN-IN/FAN-OUT for the whole software
+ * is computed with only changed sources analyzed.
+ */
+final class CallsSnapshot {
+  private static final int MAGIC = 0x43414c4c; // "CALL"
+  private static final int VERSION = 2; // 2: hash includes COPY books
+
+  /** Hash for a unit whose source file could not be hashed (never unchanged) */
+  static final long NO_HASH = -1;
+
+  // COPY statement, with the COPY book name: first in the line code area, or after the period ending a statement
+  private static final Pattern COPY = Pattern.compile("(?:^|\\.)\\s*COPY\\s+(?:\"([^\"]+)\"|'([^']+)'|([A-Za-z0-9_-]+))", Pattern.CASE_INSENSITIVE);
+  private static final String[] COPY_EXTENSIONS = {"", ".cpy", ".CPY", ".cbl", ".CBL", ".cob", ".COB"};
+
+  private final File file;
+  private final Map<String, Unit> previous;
+  private final ConcurrentMap<String, Unit> current = new ConcurrentHashMap<String, Unit>(64);
+
+  private CallsSnapshot(File file, Map<String, Unit> previous) {
+    this.file = file;
+    this.previous = previous;
+  }
+
+  /** Empty snapshot, to be saved in given file */
+  static CallsSnapshot empty(File file) {
+    return new CallsSnapshot(file, Collections.<String, Unit>emptyMap());
+  }
+
+  /** Open snapshot in given file (an empty snapshot if file does not exist) */
+  static CallsSnapshot open(File file) throws IOException {
+    if(!file.isFile()) return empty(file);
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a CALL snapshot (or unsupported version): " + file);
+      }
+      int units = in.readInt();
+      Map<String, Unit> previous = Maps.newHashMapWithExpectedSize(units);
+      for(int i = 0; i < units; i++) {
+        String path = in.readUTF();
+        String program = in.readUTF();
+        long hash = in.readLong();
+        int count = in.readInt();
+        List<String> called = Lists.newArrayListWithCapacity(count);
+        for(int j = 0; j < count; j++) {
+          called.add(in.readUTF());
+        }
+        previous.put(path, new Unit(program, hash, called));
+      }
+      return new CallsSnapshot(file, previous);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Content hash (CRC-32) for the source file and the COPY books included, looked up in the source file directory
+   * and in copyDirs. Throws FileNotFoundException when some COPY book cannot be found.
+   */
+  static long hash(File sourceFile, List<File> copyDirs) throws IOException {
+    CRC32 crc = new CRC32();
+    Set<String> included = Sets.newHashSet();
+    List<File> pending = Lists.newArrayList(sourceFile);
+    while(!pending.isEmpty()) {
+      File file = pending.remove(pending.size() - 1);
+      byte[] content = Files.readAllBytes(file.toPath());
+      crc.update(content, 0, content.length);
+      for(String copy : copyNames(content)) {
+        if(!included.add(copy.toUpperCase())) continue;
+        File copyFile = findCopy(copy, sourceFile.getAbsoluteFile().getParentFile(), copyDirs);
+        // CALLs could depend on a COPY book not found
+        if(copyFile == null) throw new FileNotFoundException("COPY book " + copy + " not found");
+        pending.add(copyFile);
+      }
+    }
+    return crc.getValue();
+  }
+
+  // Names of the COPY books included, from the code area (columns 8-72) of fixed-format lines.
+  // Comment lines (with * or / in indicator column) and text in literals are ignored
+  private static List<String> copyNames(byte[] content) throws IOException {
+    List<String> names = Lists.newArrayList();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), "ISO-8859-1"));
+    for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+      if(line.length() <= 7 || line.charAt(6) == '*' || line.charAt(6) == '/') continue;
+      String code = line.substring(7, Math.min(line.length(), 72));
+      Matcher m = COPY.matcher(code);
+      while(m.find()) {
+        if(inLiteral(code, m.start())) continue;
+        names.add(m.group(1) != null ? m.group(1) : m.group(2) != null ? m.group(2) : m.group(3));
+      }
+    }
+    return names;
+  }
+
+  // True if position in code is inside an (unclosed at that position) alphanumeric literal
+  private static boolean inLiteral(String code, int pos) {
+    char quote = 0;
+    for(int i = 0; i < pos; i++) {
+      char c = code.charAt(i);
+      if(quote == 0 && (c == '"' || c == '\'')) quote = c;
+      else if(c == quote) quote = 0;
+    }
+    return quote != 0;
+  }
+
+  private static File findCopy(String name, File sourceDir, List<File> copyDirs) {
+    List<File> dirs = Lists.newArrayList(copyDirs);
+    if(sourceDir != null) dirs.add(0, sourceDir);
+    for(File dir : dirs) {
+      for(String ext : COPY_EXTENSIONS) {
+        File copy = new File(dir, name + ext);
+        if(copy.isFile()) return copy;
+      }
+    }
+    return null;
+  }
+
+  /** Return the unit remembered for sourceFile, if its content was not changed since; null otherwise */
+  Unit getUnchanged(File sourceFile, long hash) {
+    if(hash == NO_HASH) return null;
+    Unit unit = previous.get(sourceFile.getPath());
+    return unit != null && unit.hash == hash ? unit : null;
+  }
+
+  /**
+   * Register the CALL data for a source file analyzed in current run (hash is NO_HASH if it could not be hashed).
+   * Must be called for every source file analyzed, so it is not taken as not analyzed.
+   */
+  void update(File sourceFile, String program, long hash, List<String> called) {
+    current.put(sourceFile.getPath(), new Unit(program, hash, called));
+  }
+
+  /**
+   * Units remembered from previous run for source files not analyzed in current (incremental) run,
+   * but still present. Such units are kept in the snapshot.
+   * Must not be called after a full analysis: source files not analyzed were excluded from the software.
+   */
+  Map<File, Unit> notAnalyzed() {
+    Map<File, Unit> units = Maps.newHashMap();
+    for(Map.Entry<String, Unit> e : previous.entrySet()) {
+      if(current.containsKey(e.getKey())) continue;
+      File sourceFile = new File(e.getKey());
+      if(sourceFile.isFile()) {
+        units.put(sourceFile, e.getValue());
+        current.put(e.getKey(), e.getValue());
+      }
+    }
+    return units;
+  }
+
+  /** Write snapshot, replacing the previous one */
+  void save() throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if(parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create directory " + parent);
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(current.size());
+      for(Map.Entry<String, Unit> e : current.entrySet()) {
+        Unit unit = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeUTF(unit.program);
+        out.writeLong(unit.hash);
+        out.writeInt(unit.called.size());
+        for(String called : unit.called) {
+          out.writeUTF(called);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    // previous snapshot is kept if it cannot be replaced
+    Files.move(tmp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  /** CALL data for a source file: program name, content hash and CALLed programs (one per CALL) */
+  static final class Unit {
+    private final String program;
+    private final long hash;
+    private final List<String> called;
+
+    private Unit(String program, long hash, List<String> called) {
+      this.program = program;
+      this.hash = hash;
+      this.called = called;
+    }
+
+    public String getProgram() { return program; }
+    public List<String> getCalled() { return called; }
+  }
+}
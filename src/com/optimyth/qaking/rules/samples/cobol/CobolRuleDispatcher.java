@@ -0,0 +1,89 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.cobol;
+
+import com.als.core.RuleContext;
+import com.als.core.ast.BaseNode;
+import com.optimyth.qaking.cobol.ast.CobolNode;
+import com.optimyth.qaking.rules.samples.util.NodeEventLog;
+import com.optimyth.qaking.rules.samples.util.TreeWalker;
+
+import java.util.Set;
+
+/**
+ * CobolRuleDispatcher - Single traversal of each Cobol compilation unit for all registered rules.
+ * <p/>
+ * Rules that only need to process certain node types register themselves (in initialize) with the types of interest,
+ * and call {@link #dispatch} in visit. The nodes of all the types registered by Cobol rules are recorded in a single
+ * walk on the low-level AST (and on the high-level AST, when some rule needs it) by {@link NodeEventLog}, indexed
+ * by type name; each rule receives, with its own RuleContext, only the nodes of its types. So the tree is walked
+ * once, and each rule only iterates the nodes of its own types.
+ * <p/>
+ * Rules should unregister themselves in postProcess (this drops the logs recorded).
+ */
+final class CobolRuleDispatcher {
+
+  /** A rule that processes the nodes of interest in a compilation unit, dispatched by CobolRuleDispatcher */
+  interface DispatchedRule {
+    /** Type names of interest in low-level AST (CobolNode) */
+    Set<String> getNodeTypes();
+    /** Type names of interest in high-level AST */
+    Set<String> getHighLevelNodeTypes();
+    /** Visitor for the nodes of interest in the compilation unit, or null if the unit should be ignored */
+    UnitVisitor startUnit(BaseNode root, RuleContext ctx);
+  }
+
+  /** Receives the nodes of interest (with its type registered) in a compilation unit, in document order */
+  static abstract class UnitVisitor {
+    /** Called when node is reached, before its descendants */
+    abstract void enter(BaseNode node);
+    /** Called after all descendants of node were processed */
+    void leave(BaseNode node) {}
+    /** Called when compilation unit traversal finished */
+    void end() {}
+  }
+
+  private static final NodeEventLog.Registry LOGS = NodeEventLog.registry("cobol");
+
+  private CobolRuleDispatcher() {}
+
+  static void register(DispatchedRule rule) {
+    LOGS.register(rule.getNodeTypes());
+    LOGS.register(rule.getHighLevelNodeTypes());
+  }
+
+  static void unregister(DispatchedRule rule) {
+    LOGS.unregister(rule.getNodeTypes());
+    LOGS.unregister(rule.getHighLevelNodeTypes());
+    LOGS.clear();
+  }
+
+  /** Pass to rule the nodes of its types in the compilation unit */
+  static void dispatch(DispatchedRule rule, BaseNode root, RuleContext ctx) {
+    if(!(root instanceof CobolNode)) return;
+    UnitVisitor visitor = rule.startUnit(root, ctx);
+    if(visitor == null) return;
+
+    replay(root, rule.getNodeTypes(), visitor);
+    replay(((CobolNode)root).getHighLevelNode(), rule.getHighLevelNodeTypes(), visitor);
+    visitor.end();
+  }
+
+  private static void replay(BaseNode tree, Set<String> types, final UnitVisitor visitor) {
+    if(tree == null || types.isEmpty()) return;
+
+    LOGS.of(tree, types).replay(types, new TreeWalker.Visitor() {
+      public TreeWalker.Action enter(BaseNode node) {
+        visitor.enter(node);
+        return TreeWalker.Action.CONTINUE;
+      }
+
+      @Override public void leave(BaseNode node) {
+        visitor.leave(node);
+      }
+    });
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.cobol;
+
+import com.als.core.ast.BaseNode;
+import com.als.core.ast.NodeVisitor;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.optimyth.qaking.cobol.hla.ast.DataDivision;
+import com.optimyth.qaking.cobol.hla.ast.DataEntry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DataEntryIndex - Index on the data entries in a DATA DIVISION, built once, for rules that need
+ * to operate on sets of data entries (like "all subfields of a group item" or "REDEFINES aliases").
+ * <p/>
+ * Data entries are numbered in document order, so the subfields of an entry have consecutive numbers
+ * and the entry with its subfields is represented as a range [id, end(id)). Sets of data entries are
+ * represented as bitsets (long[]), and the ranges of data entries affected when an entry is written
+ * (subfields and REDEFINES targets) are computed once per entry.
+ */
+final class DataEntryIndex {
+  private final Map<DataEntry, Integer> ids = Maps.newIdentityHashMap();
+  private final List<DataEntry> entries = Lists.newArrayList();
+  private final int[] end; // entry i and its subfields are [i, end[i])
+  private final int[] redefines; // id of the REDEFINES target for entry i (-1 if none)
+  private final int[][] written; // ranges (start, end pairs) initialized when entry i is written (lazily computed)
+
+  private DataEntryIndex(DataDivision dd) {
+    if(dd != null) {
+      dd.accept(new NodeVisitor() {
+        public void visit(BaseNode node) {
+          if(node instanceof DataEntry) {
+            ids.put((DataEntry)node, entries.size());
+            entries.add((DataEntry)node);
+          }
+        }
+      });
+    }
+
+    int size = entries.size();
+    end = new int[size];
+    redefines = new int[size];
+    written = new int[size][];
+    for(int i = 0; i < size; i++) {
+      DataEntry de = entries.get(i);
+      end[i] = i + countEntries(de);
+      redefines[i] = de.isRedefines() ? idOf(de.getRedefinesTarget()) : -1;
+    }
+  }
+
+  /** Index for the data entries in the given DATA DIVISION (could be null) */
+  static DataEntryIndex build(DataDivision dd) {
+    return new DataEntryIndex(dd);
+  }
+
+  // Number of data entries in the subtree rooted at de (de included)
+  private static int countEntries(DataEntry de) {
+    final AtomicInteger count = new AtomicInteger(0);
+    de.accept(new NodeVisitor() {
+      public void visit(BaseNode node) {
+        if(node instanceof DataEntry) count.incrementAndGet();
+      }
+    });
+    return count.get();
+  }
+
+  public int size() { return entries.size(); }
+
+  /** Number for the data entry, or -1 if not in the DATA DIVISION indexed */
+  public int idOf(DataEntry de) {
+    Integer id = de != null ? ids.get(de) : null;
+    return id != null ? id : -1;
+  }
+
+  public DataEntry get(int id) { return entries.get(id); }
+
+  /** Number of the REDEFINES target for entry, -1 if not a REDEFINES (or target unresolved) */
+  public int getRedefinesTarget(int id) { return redefines[id]; }
+
+  public long[] newBitSet() { return new long[(entries.size() + 63) >>> 6]; }
+
+  public boolean isSet(int id, long[] bits) {
+    return id >= 0 && (bits[id >>> 6] & (1L << id)) != 0;
+  }
+
+  public void set(int id, long[] bits) {
+    if(id >= 0) bits[id >>> 6] |= 1L << id;
+  }
+
+  /** Add entry, all its subfields, and the REDEFINES targets (recursively) to bits */
+  public void markWithAliases(int id, long[] bits) {
+    // bounded loop, in case of (invalid) circular REDEFINES
+    for(int steps = 0; id >= 0 && steps < redefines.length; steps++) {
+      setRange(bits, id, end[id]);
+      id = redefines[id];
+    }
+  }
+
+  /**
+   * Add the entries set when entry is written to bits: the entry and its subfields,
+   * with the REDEFINES targets (recursively) of each one.
+   */
+  public void markWritten(int id, long[] bits) {
+    if(id < 0) return;
+    int[] ranges = written[id];
+    if(ranges == null) {
+      ranges = written[id] = computeWritten(id);
+    }
+    for(int i = 0; i < ranges.length; i += 2) {
+      setRange(bits, ranges[i], ranges[i + 1]);
+    }
+  }
+
+  private int[] computeWritten(int id) {
+    List<Integer> ranges = Lists.newArrayList(id, end[id]);
+    for(int sub = id; sub < end[id]; sub++) {
+      int target = redefines[sub];
+      for(int steps = 0; target >= 0 && steps < redefines.length; steps++) {
+        if(target < id || target >= end[id]) { // target out of entry range, as a target in range is already set
+          ranges.add(target);
+          ranges.add(end[target]);
+        }
+        target = redefines[target];
+      }
+    }
+    int[] result = new int[ranges.size()];
+    for(int i = 0; i < result.length; i++) result[i] = ranges.get(i);
+    return result;
+  }
+
+  // bits[from..to) = 1
+  private static void setRange(long[] bits, int from, int to) {
+    if(from >= to) return;
+    int first = from >>> 6, last = (to - 1) >>> 6;
+    long firstMask = -1L << from, lastMask = -1L >>> -to;
+    if(first == last) {
+      bits[first] |= firstMask & lastMask;
+    } else {
+      bits[first] |= firstMask;
+      for(int i = first + 1; i < last; i++) bits[i] = -1L;
+      bits[last] |= lastMask;
+    }
+  }
+}
@@ -13,22 +13,27 @@ import com.als.core.RuleContext;
 import com.als.core.RuleViolation;
 import com.als.core.ast.BaseNode;
 import com.als.core.ast.NodeVisitor;
-import com.als.core.util.Tuple3;
-import com.google.common.collect.AbstractIterator;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.optimyth.qaking.cobol.ast.CobolNode;
 import com.optimyth.qaking.cobol.hla.ast.*;
 import com.optimyth.qaking.cobol.util.Procedures;
 import com.optimyth.qaking.highlevelapi.ast.common.HLABehaviouralUnit;
 import com.optimyth.qaking.highlevelapi.ast.common.HLACompilationUnit;
+import es.als.util.StringUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.MessageFormat;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -38,6 +43,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  * This sample rule shows how to process "global" information (e.g. calls between Cobol programs)
  * by accumulating enough information to compute FAN-OUT and FAN-IN metrics (restricted to programs with
  * source code in the analyzed software).
+ * <p/>
+ * When <em>snapshotFile</em> property is set, CALL data is persisted in that file at the end of the analysis.
+ * In next runs, CALLs for unchanged source files (and COPY books, looked up in the source file directory and in the
+ * comma-separated <em>copyDirectories</em>) are taken from the snapshot. When <em>incrementalAnalysis</em> is true
+ * (only changed files analyzed), source files not analyzed contribute the CALLs remembered, so FAN-IN/FAN-OUT
+ * is computed for the whole software; in a full analysis, source files not analyzed are dropped from the snapshot.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 12-01-2014
@@ -46,6 +57,9 @@ public class FanInFanOutCheck extends AbstractCobolRule {
   
   private int maxProcedureFanin, maxProcedureFanout, maxCallFanin, maxCallFanout;
   private Calls calls;
+  private CallsSnapshot snapshot;
+  private List<File> copyDirs = Collections.emptyList();
+  private boolean incrementalAnalysis;
 
   @Override public void initialize(RuleContext ctx) {
     super.initialize(ctx);
@@ -57,36 +71,91 @@ public class FanInFanOutCheck extends AbstractCobolRule {
 
     // State needed to remember inter-program CALLs, so calls to programs not in analyzed software are ignored
     this.calls = new Calls();
+
+    // Optional snapshot with CALL data from previous runs
+    String snapshotFile = getProperty("snapshotFile", "");
+    this.incrementalAnalysis = getProperty("incrementalAnalysis", false);
+    this.copyDirs = Lists.newArrayList();
+    for(String dir : StringUtils.asSet(getProperty("copyDirectories", ""), ',')) {
+      if(dir.trim().length() > 0) copyDirs.add(new File(dir.trim()));
+    }
+    this.snapshot = null;
+    if(snapshotFile.length() > 0) {
+      File file = new File(snapshotFile);
+      try {
+        this.snapshot = CallsSnapshot.open(file);
+      } catch(IOException e) {
+        getLogger().warn("Cannot read CALL snapshot " + file + ", all CALLs will be resolved again: " + e.getMessage());
+        this.snapshot = CallsSnapshot.empty(file);
+      }
+    }
   }
 
   @Override protected void visit(BaseNode root, RuleContext ctx) {
     if(!(root instanceof CobolNode)) return;
     CobolNode lla = (CobolNode)root;
     
-    // Register program name for the current source file 
+    // Program name for the current source file, registered with the CALLs found
     // (so CALL to programs in analyzed software could be resolved)
     File sourceFile = ctx.getSourceCodeFilename();
     String programName = UtilCobol.getProgramName(lla, sourceFile).toUpperCase();
-    calls.registerProgram(programName, sourceFile);
-    
+
     // Use high-level AST to analyze "jump" statements (PERFORM, GO TO, CALL), and accumulate FANIN/FANOUT
     // Please note that PERFORM / GO TO are "local" calls to procedures in same source, while CALL are "global"
     // calls that need to be remembered
     HLACompilationUnit cu = (HLACompilationUnit)lla.getHighLevelNode();    
     ProcedureDivision pd = cu.find(ProcedureDivision.class);
-    if(pd == null) return;
 
-    // JumpVisitor traverses PROCEDURE DIVISION and accumulate calls for PERFORM
-    JumpVisitor jumpVisitor = new JumpVisitor(pd, programName);
-    pd.accept(jumpVisitor);
-    
-    jumpVisitor.reportExcessiveLocalCalls(ctx);
+    // CALLs in a source file not changed since the snapshot was taken need not be resolved again
+    long hash = snapshot != null ? hash(sourceFile) : CallsSnapshot.NO_HASH;
+    CallsSnapshot.Unit unchanged = snapshot != null ? snapshot.getUnchanged(sourceFile, hash) : null;
+    List<String> calledPrograms = unchanged != null ? unchanged.getCalled() : Collections.<String>emptyList();
+
+    if(pd != null) {
+      // JumpVisitor traverses PROCEDURE DIVISION and accumulate calls for PERFORM, and programs CALLed
+      JumpVisitor jumpVisitor = new JumpVisitor(pd, unchanged == null);
+      pd.accept(jumpVisitor);
+      if(unchanged == null) calledPrograms = jumpVisitor.getCalledPrograms();
+      jumpVisitor.reportExcessiveLocalCalls(ctx);
+    }
+
+    calls.registerProgram(programName, sourceFile, calledPrograms);
+    // registered even without hash, so the unit from previous run is not taken as not analyzed
+    if(snapshot != null) snapshot.update(sourceFile, programName, hash, calledPrograms);
   }
 
   @Override public void postProcess(RuleContext ctx) {
     super.postProcess(ctx);
+
+    if(snapshot != null && incrementalAnalysis) {
+      // Source files not analyzed in this (incremental) run contribute the CALLs remembered
+      for(Map.Entry<File, CallsSnapshot.Unit> e : snapshot.notAnalyzed().entrySet()) {
+        CallsSnapshot.Unit unit = e.getValue();
+        calls.registerProgram(unit.getProgram(), e.getKey(), unit.getCalled());
+      }
+    }
+
     calls.reportExcessiveCalls(ctx);
     calls = null; // Let state be garbage-collected
+
+    if(snapshot != null) {
+      try {
+        snapshot.save();
+      } catch(IOException e) {
+        getLogger().warn("Cannot write CALL snapshot: " + e.getMessage());
+      }
+      snapshot = null;
+    }
+  }
+
+  // Content hash for source file and its COPY books, NO_HASH if some file cannot be read
+  private long hash(File sourceFile) {
+    try {
+      return CallsSnapshot.hash(sourceFile, copyDirs);
+    } catch(IOException e) {
+      getLogger().warn("Cannot hash " + sourceFile + ", its CALLs will be resolved again: " + e.getMessage());
+      return CallsSnapshot.NO_HASH;
+    }
   }
 
   // Simple utilities for accumulating FANIN/FANOUT metric values
@@ -105,82 +174,83 @@ public class FanInFanOutCheck extends AbstractCobolRule {
   }  
   
   // Accumulate CALL data. After processing all input source files, FAN-IN/FAN-OUT metric values
-  // for all programs in analyzed software could be computed (excluding CALLs to programs not in analyzed software)
+  // for all programs in analyzed software could be computed (excluding CALLs to programs not in analyzed software).
+  // Program names are interned to int ids, and the CALLs found in each source file are kept as an int[] of
+  // called program ids. Registration does not take any lock (so visit() on different files may run in parallel),
+  // and CALLs are resolved only once, in postProcess(), when all programs in analyzed software are known.
   private class Calls {
-    private Map<String, File> programsFound = Maps.newHashMapWithExpectedSize(64);
-    private Map<String, AtomicInteger> fanin = Maps.newHashMapWithExpectedSize(64);
-    private Map<String, AtomicInteger> fanout = Maps.newHashMapWithExpectedSize(64);
-    private ListMultimap<String, String> pendingCalls = ArrayListMultimap.create(64, 3);
-        
-    // Register a source code file analyzed and program name for that source file
-    public synchronized void registerProgram(String programName, File sourceFile) {
-      programName = programName.toUpperCase(); // In cobol, identifiers are case-insensitive
-      programsFound.put(programName, sourceFile); 
-      
-      // Resolve pending calls to current program, trying to avoid too much state data accumulated
-      List<String> callers = pendingCalls.removeAll(programName);
-      if(!callers.isEmpty()) {
-        add(programName, fanin, callers.size());
-        for(String caller : callers) {
-          increment(caller, fanout);
-        }
+    private final ConcurrentMap<String, Integer> programIds = new ConcurrentHashMap<String, Integer>(64);
+    private final AtomicInteger nextId = new AtomicInteger(0);
+    private final ConcurrentMap<Integer, File> programsFound = new ConcurrentHashMap<Integer, File>(64);
+    private final Queue<CallEdges> edges = new ConcurrentLinkedQueue<CallEdges>();
+
+    // Intern program name, returning its id
+    private Integer idOf(String programName) {
+      Integer id = programIds.get(programName);
+      if(id == null) {
+        Integer newId = nextId.getAndIncrement();
+        id = programIds.putIfAbsent(programName, newId);
+        if(id == null) id = newId;
       }
+      return id;
     }
-    
-    // Register a call to the given program
-    public synchronized void registerCall(String caller, String called) {       
-      called = called.toUpperCase(); // In cobol, identifiers are case-insensitive
-      
-      if(programsFound.containsKey(called)) {
-        // Both caller and called in analyzed software, 
-        // increment FANIN(called) and FANOUT(caller)
-        increment(called, fanin);
-        increment(caller, fanout);
-        
-      } else {
-        // Need to remember the call (called <- caller) for later resolution
-        pendingCalls.put(called, caller);
+
+    // Register a source code file analyzed, the program name for that source file and the programs it CALLs
+    public void registerProgram(String programName, File sourceFile, List<String> calledPrograms) {
+      Integer caller = idOf(programName.toUpperCase()); // In cobol, identifiers are case-insensitive
+      registerSource(caller, sourceFile);
+
+      if(!calledPrograms.isEmpty()) {
+        int[] called = new int[calledPrograms.size()];
+        int i = 0;
+        for(String calledProgram : calledPrograms) {
+          called[i++] = idOf(calledProgram.toUpperCase());
+        }
+        edges.add(new CallEdges(caller, called));
       }
-      
     }
-    
-    // Get the triplets {programName, sourceFile, integer} for all programs in analyzed software 
-    // with outgoing (fanout) or incomming CALLs exceedint the threshold
-    private Iterable<Tuple3<String, File, Integer>> getExcessiveItems(final Map<String, AtomicInteger> map, final int threshold) {
-      return new Iterable<Tuple3<String, File, Integer>>() {
-        public Iterator<Tuple3<String, File, Integer>> iterator() {
-          return new AbstractIterator<Tuple3<String, File, Integer>>() {
-            private Iterator<String> i = programsFound.keySet().iterator();
-            private String next = findNext();
-            
-            @Override protected Tuple3<String, File, Integer> computeNext() {
-              if(next == null) return endOfData();
-              String curr = next;
-              next = findNext();
-              return new Tuple3<String, File, Integer>(curr, programsFound.get(curr), map.get(curr).intValue());
-            }
-
-            private String findNext() {
-              while(i.hasNext()) {
-                String candidate = i.next();                
-                // Check if candidate program has metrics, and metric is exceeded
-                if(map.containsKey(candidate) && map.get(candidate).intValue() > threshold) {
-                  return candidate;
-                }
-              }
-              return null;
-            }            
-          };
-        }
-      };
+
+    // When the same program is found in several source files, keep the first path in lexicographic order,
+    // so the file reported does not depend on the order source files were analyzed
+    private void registerSource(Integer program, File sourceFile) {
+      File previous = programsFound.putIfAbsent(program, sourceFile);
+      while(previous != null && sourceFile.getPath().compareTo(previous.getPath()) < 0) {
+        if(programsFound.replace(program, previous, sourceFile)) break;
+        previous = programsFound.get(program);
+      }
     }
 
+    // Resolve CALLs: only when both caller and called are in analyzed software,
+    // increment FANIN(called) and FANOUT(caller)
     public void reportExcessiveCalls(RuleContext ctx) {
-      for(Tuple3<String, File, Integer> e : getExcessiveItems(fanin, maxCallFanin)) {
-        reportViolation(e.v1, e.v2, e.v3, maxCallFanin, "FAN-IN", ctx);
+      int size = nextId.get();
+      File[] files = new File[size];
+      for(Map.Entry<Integer, File> e : programsFound.entrySet()) {
+        files[e.getKey()] = e.getValue();
+      }
+
+      int[] fanin = new int[size];
+      int[] fanout = new int[size];
+      for(CallEdges e : edges) {
+        for(int called : e.called) {
+          if(files[called] != null) {
+            fanin[called]++;
+            fanout[e.caller]++;
+          }
+        }
       }
-      for(Tuple3<String, File, Integer> e : getExcessiveItems(fanout, maxCallFanout)) {
-        reportViolation(e.v1, e.v2, e.v3, maxCallFanout, "FAN-OUT", ctx);
+
+      // Ids depend on the order source files were analyzed, so violations are emitted in program name order
+      SortedMap<String, Integer> byName = new TreeMap<String, Integer>(programIds);
+      for(Map.Entry<String, Integer> e : byName.entrySet()) {
+        int id = e.getValue();
+        if(files[id] == null) continue; // program not in analyzed software
+        if(fanin[id] > maxCallFanin) {
+          reportViolation(e.getKey(), files[id], fanin[id], maxCallFanin, "FAN-IN", ctx);
+        }
+        if(fanout[id] > maxCallFanout) {
+          reportViolation(e.getKey(), files[id], fanout[id], maxCallFanout, "FAN-OUT", ctx);
+        }
       }
     }
     
@@ -194,17 +264,30 @@ public class FanInFanOutCheck extends AbstractCobolRule {
     }
   }
 
+  // CALLs found in a program: caller id, and ids of the called programs (one per CALL)
+  private static final class CallEdges {
+    private final int caller;
+    private final int[] called;
+
+    private CallEdges(int caller, int[] called) {
+      this.caller = caller;
+      this.called = called;
+    }
+  }
+
   // Accumulate local jump data (PERFORM and GOTO). After visitor processes PROCEDURE DIVISION,
   // all procedure (paragraph or procedure section) FAN-IN/FAN-OUT metric is available.
   private class JumpVisitor implements NodeVisitor {
     private final Procedures procedures;
-    private final String caller;
+    private final boolean resolveCalls;
+    private final List<String> calledPrograms;
     private final Map<HLABehaviouralUnit, AtomicInteger> proceduresFanout;
     private final Map<HLABehaviouralUnit, AtomicInteger> proceduresFanin;
 
-    public JumpVisitor(ProcedureDivision procedureDivision, String caller) {
+    public JumpVisitor(ProcedureDivision procedureDivision, boolean resolveCalls) {
       this.procedures = new Procedures(procedureDivision);
-      this.caller = caller;
+      this.resolveCalls = resolveCalls;
+      calledPrograms = Lists.newArrayList();
       proceduresFanin = Maps.newHashMap();
       proceduresFanout = Maps.newHashMap();
     }
@@ -224,20 +307,22 @@ public class FanInFanOutCheck extends AbstractCobolRule {
         //  FANOUT(from) += # of called procedures; FANIN(called) += 1
         faninFanout(gotoStmt, calledUnits);
 
-      } else if (stmt instanceof CallStatement) {
+      } else if (resolveCalls && stmt instanceof CallStatement) {
         CallStatement call = (CallStatement)stmt;
         // Shows how to resolve the potential name(s) for static or dynamic CALL
         // Dynamic CALL means that program name is encoded in a data item.
         // Call.processAnyCall() tries to find such names by static analysis
-        Call.processAnyCall(call.getNode(), new Call.OnCandidateCall<Calls>() {
-          public void onCall(Call call, Calls calls) {
-            String called = call.getProgram();
-            calls.registerCall(caller, called);
+        Call.processAnyCall(call.getNode(), new Call.OnCandidateCall<List<String>>() {
+          public void onCall(Call call, List<String> calledPrograms) {
+            calledPrograms.add(call.getProgram());
           }
-        }, calls);
+        }, calledPrograms);
       }
     }
 
+    // Programs CALLed from the PROCEDURE DIVISION (one entry per CALL)
+    public List<String> getCalledPrograms() { return calledPrograms; }
+
     private void faninFanout(CobolStatement stmt, List<HLABehaviouralUnit> calledUnits) {
       HLABehaviouralUnit from = stmt.getProcedure(); // The containing procedure
       add(from, proceduresFanout, calledUnits.size());
@@ -39,13 +39,20 @@ import static com.optimyth.qaking.cobol.util.Procedures.UsedChecker;
  * @version 03-01-2014
  */
 public class FindUnusedCode extends AbstractCobolRule {
-  
+
+  @Override public void postProcess(RuleContext ctx) {
+    FlowGraphCache.clear();
+    super.postProcess(ctx);
+  }
+
   @Override protected void visit(BaseNode root, RuleContext ctx) {
     CobolNode cu = (CobolNode)root;
     ProcedureDivision pd = getDivision(cu.getHighLevelNode(), ProcedureDivision.class);
     if(pd==null) return; // No procedure division, probably this is not a Cobol (sub)program
     
-    DataFlowGraph<DataFlowNode> cfg = getFlow(pd, ctx);
+    // Control-flow graph is shared with other rules that need it for the same PROCEDURE DIVISION
+    DataFlowGraph<DataFlowNode> cfg = FlowGraphCache.get(pd);
+    if(cfg==null) cfg = FlowGraphCache.put(pd, getFlow(pd, ctx));
     if(cfg==null) {
       getLogger().warn("Cannot fetch control flow graph for unit " + ctx.getSourceCodeFilename());
       return;
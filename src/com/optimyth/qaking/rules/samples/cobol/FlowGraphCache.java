@@ -0,0 +1,47 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.cobol;
+
+import com.optimyth.qaking.cobol.hla.ast.ProcedureDivision;
+import com.optimyth.qaking.codeanalysis.controlflow.model.DataFlowGraph;
+import com.optimyth.qaking.codeanalysis.controlflow.model.DataFlowNode;
+import com.optimyth.qaking.rules.samples.util.IdentityLru;
+
+/**
+ * FlowGraphCache - Control-flow graphs for PROCEDURE DIVISIONs, shared by the Cobol rules
+ * that need them (like {@link UninitializedDataRead} and {@link FindUnusedCode}), so the graph
+ * for a program unit is built once per analysis and not once per rule.
+ * <p/>
+ * Graphs are keyed by ProcedureDivision instance (see {@link IdentityLru}). Rules using the cache
+ * must {@link #clear} it in postProcess, so no AST is retained after the analysis.
+ * Usage:
+ * <pre>
+ * DataFlowGraph&lt;DataFlowNode&gt; cfg = FlowGraphCache.get(pd);
+ * if(cfg == null) cfg = FlowGraphCache.put(pd, getFlow(pd, ctx));
+ * </pre>
+ */
+final class FlowGraphCache {
+
+  private static final IdentityLru<ProcedureDivision, DataFlowGraph<DataFlowNode>> cache =
+    new IdentityLru<ProcedureDivision, DataFlowGraph<DataFlowNode>>();
+
+  private FlowGraphCache() {}
+
+  /** The control-flow graph for procedure division, or null if not cached */
+  static DataFlowGraph<DataFlowNode> get(ProcedureDivision pd) {
+    return cache.get(pd);
+  }
+
+  /** Register control-flow graph for the procedure division, returning it */
+  static DataFlowGraph<DataFlowNode> put(ProcedureDivision pd, DataFlowGraph<DataFlowNode> cfg) {
+    return cache.put(pd, cfg);
+  }
+
+  /** Drop all cached graphs (and the ASTs they reference) */
+  static void clear() {
+    cache.clear();
+  }
+}
@@ -6,16 +6,19 @@
 
 package com.optimyth.qaking.rules.samples.cobol;
 
-import com.als.cobol.CobolAstUtil;
 import com.als.cobol.rules.AbstractCobolRule;
 import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
 import com.als.core.ast.NodePredicate;
+import com.google.common.collect.ImmutableSet;
 import com.optimyth.qaking.cobol.ast.CobolNode;
 import com.optimyth.qaking.cobol.hla.ast.DataEntry;
 import com.optimyth.qaking.cobol.util.Declarations;
-import com.optimyth.qaking.highlevelapi.dsl.Query;
 
+import java.util.Collections;
+import java.util.Set;
+
+import static com.als.cobol.UtilCobol.PROCEDURE_DIVISION;
 import static com.als.cobol.UtilCobol.STATEMENT;
 import static com.optimyth.qaking.cobol.hla.primitives.CobolPredicates.ARITH_STATEMENTS;
 
@@ -26,15 +29,18 @@ import static com.optimyth.qaking.cobol.hla.primitives.CobolPredicates.ARITH_STA
  * find data references in arithmetic operations, but not in other operations) for search,
  * and isDisplayType (which match data references on DISPLAY types) for filtering. Of course
  * both predicates could be collapsed in a single one. The rule then simply combines these predicates
- * in a Query.
+ * on each QualifiedDataName in PROCEDURE DIVISION, received from the single traversal
+ * made by {@link CobolRuleDispatcher} for all the Cobol rules registered.
  *
  * Standard rule COBOYR_NDIS does exactly what this sample rule performs.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 13-01-2014
  */
-public class NoDisplayDataInArithmeticOp extends AbstractCobolRule {
-  
+public class NoDisplayDataInArithmeticOp extends AbstractCobolRule implements CobolRuleDispatcher.DispatchedRule {
+
+  private static final Set<String> NODE_TYPES = ImmutableSet.of(PROCEDURE_DIVISION, "QualifiedDataName");
+
   // Match QualifiedDataName operand in arithmetic statement
   private final NodePredicate dataRefInArithStmt = new NodePredicate() {
     // To check that data item reference iside arithmetic statement
@@ -63,13 +69,43 @@ public class NoDisplayDataInArithmeticOp extends AbstractCobolRule {
     }
   };
   
-  // "Match data reference in arithmetic expression where the data item type is DISPLAY type"
-  private final Query query = Query.query()
-    .find(dataRefInArithStmt) // get data references in arithmetic statement
-    .filter(isDisplayType) // ... but only DISPLAY / DISPLAY-1 types
-    .report();
+  @Override public void initialize(RuleContext ctx) {
+    super.initialize(ctx);
+    CobolRuleDispatcher.register(this);
+  }
+
+  @Override public void postProcess(RuleContext ctx) {
+    CobolRuleDispatcher.unregister(this);
+    super.postProcess(ctx);
+  }
 
   @Override protected void visit(BaseNode root, RuleContext ctx) {
-    query.run(this, ctx, CobolAstUtil.getProcedureDivision(root));
+    // Data references are received from the single traversal shared with other Cobol rules
+    CobolRuleDispatcher.dispatch(this, root, ctx);
+  }
+
+  public Set<String> getNodeTypes() { return NODE_TYPES; }
+
+  public Set<String> getHighLevelNodeTypes() { return Collections.emptySet(); }
+
+  public CobolRuleDispatcher.UnitVisitor startUnit(BaseNode root, final RuleContext ctx) {
+    return new CobolRuleDispatcher.UnitVisitor() {
+      private int inProcedureDivision = 0; // only data references in PROCEDURE DIVISION are checked
+
+      void enter(BaseNode node) {
+        if(node.isTypeName(PROCEDURE_DIVISION)) {
+          inProcedureDivision++;
+        } else if(inProcedureDivision > 0) {
+          // "Match data reference in arithmetic expression where the data item type is DISPLAY type"
+          if(dataRefInArithStmt.is(node) && isDisplayType.is(node)) {
+            addViolation(violation(ctx, node), ctx);
+          }
+        }
+      }
+
+      void leave(BaseNode node) {
+        if(node.isTypeName(PROCEDURE_DIVISION)) inProcedureDivision--;
+      }
+    };
   }
 }
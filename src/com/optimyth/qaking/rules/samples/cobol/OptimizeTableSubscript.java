@@ -6,13 +6,12 @@
 
 package com.optimyth.qaking.rules.samples.cobol;
 
-import com.als.cobol.CobolAstUtil;
 import com.als.cobol.rule.model.DataDescriptionEntry;
 import com.als.cobol.rules.AbstractCobolRule;
 import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
-import com.als.core.ast.NodeVisitor;
 import com.als.core.util.StringUtil;
+import com.google.common.collect.ImmutableSet;
 import com.optimyth.qaking.cobol.ast.CobolNode;
 import com.optimyth.qaking.cobol.hla.ast.DataEntry;
 import com.optimyth.qaking.cobol.util.Declarations;
@@ -21,6 +20,7 @@ import java.util.Collections;
 import java.util.Set;
 
 import static com.als.cobol.UtilCobol.COBOL_WORD;
+import static com.als.cobol.UtilCobol.PROCEDURE_DIVISION;
 import static com.als.cobol.UtilCobol.QUALIFIED_DATA_NAME;
 import static com.als.core.ast.NodePredicates.type;
 
@@ -36,12 +36,13 @@ import static com.als.core.ast.NodePredicates.type;
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 13-01-2014
  */
-public class OptimizeTableSubscript extends AbstractCobolRule {
+public class OptimizeTableSubscript extends AbstractCobolRule implements CobolRuleDispatcher.DispatchedRule {
 
   private static final int TABLE_SIZE = 32000;
   private static final int DEFAULT_BYTES_FULL_WORD = 8; // CPU halfword below this
   private static final String PARAM_BINARYFIELD = "binaryField";
   private static final String PARAM_BYTES_FULL_WORD = "bytesFullWord";
+  private static final Set<String> NODE_TYPES = ImmutableSet.of(PROCEDURE_DIVISION, "Subscript");
 
   private Set<String> binaryField = Collections.emptySet();
   private int fullWordSize = DEFAULT_BYTES_FULL_WORD;
@@ -54,27 +55,52 @@ public class OptimizeTableSubscript extends AbstractCobolRule {
     binaryField = StringUtil.asSet(binaryFieldStr, ',');
     fullWordSize = getProperty(PARAM_BYTES_FULL_WORD, DEFAULT_BYTES_FULL_WORD);
     halfWordMin = 1+(fullWordSize/2);    
+    CobolRuleDispatcher.register(this);
   }
 
-  @Override protected void visit(BaseNode root, final RuleContext ctx) {
-    CobolAstUtil.getProcedureDivision(root).accept(new NodeVisitor() {
-      public void visit(BaseNode node) {
-        if(node.isTypeName("Subscript"))  {
-          CobolNode subscript = (CobolNode)node;
-          CobolNode tableNode = subscript.leftSibling(type(QUALIFIED_DATA_NAME));
-          DataEntry de = Declarations.getDataEntry(tableNode);
-          if(de == null) return;
-          DataDescriptionEntry.CobolTable table = de.getTable();
-          if(table == null) return;  // The subscript is not on a Cobol table resolved (possibly because defining COPY was not found)
-
-          subscript = subscript.find(QUALIFIED_DATA_NAME); 
-          if(subscript.isNotNull()) { // if subscript is a literal, nothing more to check
-            checkTableSubscript(table, subscript, ctx);
-          }
+  @Override public void postProcess(RuleContext ctx) {
+    CobolRuleDispatcher.unregister(this);
+    super.postProcess(ctx);
+  }
+
+  @Override protected void visit(BaseNode root, RuleContext ctx) {
+    // Subscripts are received from the single traversal shared with other Cobol rules
+    CobolRuleDispatcher.dispatch(this, root, ctx);
+  }
+
+  public Set<String> getNodeTypes() { return NODE_TYPES; }
+
+  public Set<String> getHighLevelNodeTypes() { return Collections.emptySet(); }
+
+  public CobolRuleDispatcher.UnitVisitor startUnit(BaseNode root, final RuleContext ctx) {
+    return new CobolRuleDispatcher.UnitVisitor() {
+      private int inProcedureDivision = 0; // only subscripts in PROCEDURE DIVISION are checked
+
+      void enter(BaseNode node) {
+        if(node.isTypeName(PROCEDURE_DIVISION)) {
+          inProcedureDivision++;
+        } else if(inProcedureDivision > 0) {
+          checkSubscript((CobolNode)node, ctx);
         }
       }
-    });
-    
+
+      void leave(BaseNode node) {
+        if(node.isTypeName(PROCEDURE_DIVISION)) inProcedureDivision--;
+      }
+    };
+  }
+
+  private void checkSubscript(CobolNode subscript, RuleContext ctx) {
+    CobolNode tableNode = subscript.leftSibling(type(QUALIFIED_DATA_NAME));
+    DataEntry de = Declarations.getDataEntry(tableNode);
+    if(de == null) return;
+    DataDescriptionEntry.CobolTable table = de.getTable();
+    if(table == null) return;  // The subscript is not on a Cobol table resolved (possibly because defining COPY was not found)
+
+    subscript = subscript.find(QUALIFIED_DATA_NAME);
+    if(subscript.isNotNull()) { // if subscript is a literal, nothing more to check
+      checkTableSubscript(table, subscript, ctx);
+    }
   }
 
   private void checkTableSubscript(DataDescriptionEntry.CobolTable table, CobolNode subscript, RuleContext ctx) {
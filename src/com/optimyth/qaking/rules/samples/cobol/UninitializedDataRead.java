@@ -11,7 +11,8 @@ import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
 import com.als.core.ast.NodeVisitor;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.optimyth.qaking.cobol.ast.CobolNode;
 import com.optimyth.qaking.cobol.hla.ast.*;
 import com.optimyth.qaking.cobol.util.DataReference;
@@ -22,7 +23,9 @@ import com.optimyth.qaking.codeanalysis.controlflow.model.DataFlowNode;
 import com.optimyth.qaking.codeanalysis.controlflow.model.IDataFlowNode;
 
 import java.text.MessageFormat;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static com.als.cobol.UtilCobol.PROCEDURE_DIVISION;
@@ -30,10 +33,11 @@ import static com.als.cobol.UtilCobol.PROCEDURE_DIVISION;
 /**
  * UninitializedDataRead - Sample rule to show how to use control-flow graph to find illegal access to data entries.
  * <p/>
- * The algorithm shown is simple: For each PROCEDURE DIVISION, get its control-flow graph,
- * and traverse depth-first using ControlFlowNavigator.forwardDFT() with a visitor that
- * remembers data entries set up to that moment. When an statement operand is "read",
- * emits a violation if not previously set and not VALUE clause initializing the data entry.
+ * The algorithm shown is a forward dataflow analysis: For each PROCEDURE DIVISION, get its control-flow graph,
+ * and compute for each statement the data entries set in all paths reaching the statement
+ * (data entries are numbered, and sets of data entries represented as bitsets).
+ * When an statement operand is "read", emits a violation if not previously set in all paths
+ * and not VALUE clause initializing the data entry.
  * <p/>
  * As usual, devil is in the details. Table references are considered OK if all entries below are initialized.
  * REDEFINES (aliases in cobol) also make checks a bit more complex.
@@ -41,58 +45,144 @@ import static com.als.cobol.UtilCobol.PROCEDURE_DIVISION;
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 13-01-2014
  */
-public class UninitializedDataRead extends AbstractCobolRule {
+public class UninitializedDataRead extends AbstractCobolRule implements CobolRuleDispatcher.DispatchedRule {
 
   // Ignore anything not in working-storage or local-storage (Screen, Report and Linkage sections are "initialized" externally)
   private static final Set<String> SECTIONS_TO_CHECK = ImmutableSet.of("WorkingStorageSection", "LocalStorageSection");
 
-  @Override protected void visit(BaseNode root, final RuleContext ctx) {
-    if(!(root instanceof CobolNode)) return;
-    CobolNode ast = (CobolNode)root;
+  private static final Set<String> NODE_TYPES = ImmutableSet.of(PROCEDURE_DIVISION);
 
-    ast.accept(new NodeVisitor() {
-      public void visit(BaseNode node) {
+  @Override public void initialize(RuleContext ctx) {
+    super.initialize(ctx);
+    CobolRuleDispatcher.register(this);
+  }
+
+  @Override public void postProcess(RuleContext ctx) {
+    CobolRuleDispatcher.unregister(this);
+    FlowGraphCache.clear();
+    super.postProcess(ctx);
+  }
+
+  @Override protected void visit(BaseNode root, RuleContext ctx) {
+    // PROCEDURE DIVISIONs are received from the single traversal shared with other Cobol rules
+    CobolRuleDispatcher.dispatch(this, root, ctx);
+  }
+
+  public Set<String> getNodeTypes() { return NODE_TYPES; }
+
+  public Set<String> getHighLevelNodeTypes() { return Collections.emptySet(); }
+
+  public CobolRuleDispatcher.UnitVisitor startUnit(BaseNode root, final RuleContext ctx) {
+    return new CobolRuleDispatcher.UnitVisitor() {
+      void enter(BaseNode node) {
         // It is not usual to have multiple program units (multiple PROCEDURE DIVISION),
         // but this will work even with multiple units
-        if(node.isTypeName(PROCEDURE_DIVISION)) {
-          CobolNode n = (CobolNode)node;
-          ProcedureDivision pd = (ProcedureDivision) n.getHighLevelNode();
-          DataFlowGraph<DataFlowNode> cfg = getFlow(pd, ctx);
-          checkIllegalUsages(pd, cfg, ctx);
-        }
+        CobolNode n = (CobolNode)node;
+        ProcedureDivision pd = (ProcedureDivision) n.getHighLevelNode();
+        // Control-flow graph is shared with other rules that need it for the same PROCEDURE DIVISION
+        DataFlowGraph<DataFlowNode> cfg = FlowGraphCache.get(pd);
+        if(cfg == null) cfg = FlowGraphCache.put(pd, getFlow(pd, ctx));
+        if(cfg == null) return;
+        checkIllegalUsages(pd, cfg, ctx);
       }
-    });
+    };
   }
 
   /**
-   * Perform a depth-first navigation on the control-flow, and for each statement or clause
-   * with data item usages, check if the data item was previously set (when statement semantics
-   * says that operand was written) or initialized by a VALUE clause in the data definition.
+   * Compute, for each statement in the control-flow graph, the data entries "definitely initialized"
+   * before the statement (set in all paths from the PROCEDURE DIVISION entry point), and then check
+   * for each statement or clause with data item usages if the data item is definitely initialized
+   * or has a VALUE clause in the data definition.
+   * <p/>
+   * This is a classic forward dataflow analysis, solved with a worklist: data entries are numbered
+   * and the initialized entries on each statement are represented as a bitset, with intersection
+   * where control-flow paths merge.
    */
   private void checkIllegalUsages(ProcedureDivision pd, DataFlowGraph<DataFlowNode> cfg, final RuleContext ctx) {
-    final Set<DataEntry> initialized = Sets.newHashSetWithExpectedSize(128);
-    
-    // A common case is a table of constants (like messages), control such case
-    markInitializedTables(pd, initialized);
-        
+    // Index on data entries, to operate on sets of entries (subfields, REDEFINES aliases) without re-walking the DATA DIVISION
+    DataEntryIndex entries = DataEntryIndex.build(pd.getDataDivision());
+    if(entries.size() == 0) return; // no data entries to check
+
+    // Number reachable nodes in control-flow graph (first node is the entry point)
+    final List<IDataFlowNode> nodes = Lists.newArrayListWithExpectedSize(256);
+    final Map<IDataFlowNode, Integer> nodeIds = Maps.newIdentityHashMap();
     ControlFlowNavigator.forwardDFT(cfg, new ControlFlowVisitor() {
       public boolean onDataFlowNode(IDataFlowNode node) {
-        BaseNode stmt = node.getAstNode();
-        if(stmt instanceof HasDataReferences) {
-          // When control-flow graph was built, all operands referencing a data entry were registered here
-          Set<DataReference> refs = ((HasDataReferences) stmt).getDataReferences();
-          if(refs==null) return true; // no refs
-
-          for(DataReference ref : refs) {
-            checkDataReference(stmt, ref, initialized, ctx);
-          }
+        if(!nodeIds.containsKey(node)) {
+          nodeIds.put(node, nodes.size());
+          nodes.add(node);
         }
         return true; // continue navigation
       }
     });
+    if(nodes.isEmpty()) return;
+
+    // A common case is a table of constants (like messages), control such case
+    long[] initial = entries.newBitSet();
+    markInitializedTables(pd, entries, initial);
+
+    // in[n] = entries initialized in all paths reaching node n (null while n not reached)
+    long[][] in = new long[nodes.size()][];
+    in[0] = initial;
+    int[] worklist = new int[nodes.size()];
+    boolean[] queued = new boolean[nodes.size()];
+    int head = 0, pending = 1;
+    worklist[0] = 0;
+    queued[0] = true;
+
+    long[] state = entries.newBitSet();
+    while(pending > 0) {
+      int n = worklist[head];
+      head = (head + 1) % worklist.length;
+      pending--;
+      queued[n] = false;
+
+      IDataFlowNode node = nodes.get(n);
+      System.arraycopy(in[n], 0, state, 0, state.length);
+      checkStatement(node, entries, state, null);
+
+      for(IDataFlowNode succ : node.getChildren()) {
+        Integer s = nodeIds.get(succ);
+        if(s == null) continue;
+        boolean changed;
+        if(in[s] == null) {
+          in[s] = state.clone();
+          changed = true;
+        } else {
+          changed = intersect(in[s], state);
+        }
+        if(changed && !queued[s]) {
+          worklist[(head + pending) % worklist.length] = s;
+          pending++;
+          queued[s] = true;
+        }
+      }
+    }
+
+    // With the fixpoint, check data items read in each statement
+    for(int n = 0; n < nodes.size(); n++) {
+      if(in[n] == null) continue;
+      System.arraycopy(in[n], 0, state, 0, state.length);
+      checkStatement(nodes.get(n), entries, state, ctx);
+    }
   }
 
-  private void markInitializedTables(ProcedureDivision pd, final Set<DataEntry> initialized) {
+  // Process the data references in the statement for the control-flow node, updating the initialized entries.
+  // When ctx is given, reads on data entries not initialized are reported
+  private void checkStatement(IDataFlowNode node, DataEntryIndex entries, long[] initialized, RuleContext ctx) {
+    BaseNode stmt = node.getAstNode();
+    if(stmt instanceof HasDataReferences) {
+      // When control-flow graph was built, all operands referencing a data entry were registered here
+      Set<DataReference> refs = ((HasDataReferences) stmt).getDataReferences();
+      if(refs==null) return; // no refs
+
+      for(DataReference ref : refs) {
+        checkDataReference(stmt, ref, entries, initialized, ctx);
+      }
+    }
+  }
+
+  private void markInitializedTables(ProcedureDivision pd, final DataEntryIndex entries, final long[] initialized) {
     DataDivision dd = pd.getDataDivision();
     if(dd==null) return;
     dd.accept(new NodeVisitor() {
@@ -102,8 +192,8 @@ public class UninitializedDataRead extends AbstractCobolRule {
           if(curr.isRedefines()) {
             DataEntry target = curr.getRedefinesTarget();
             // If the target data entry is initialized, mark this entry and all its subfields as initialized
-            if(initialized.contains(target)) {
-              markAsInitialized(curr, initialized);
+            if(entries.isSet(entries.idOf(target), initialized)) {
+              entries.markWithAliases(entries.idOf(curr), initialized);
             }
           } else {
             List<DataEntry> subfields = curr.directSubfields();
@@ -116,7 +206,7 @@ public class UninitializedDataRead extends AbstractCobolRule {
               }
             }
             if(init) {
-              initialized.add(curr);
+              entries.set(entries.idOf(curr), initialized);
             }
           }
         }
@@ -124,55 +214,44 @@ public class UninitializedDataRead extends AbstractCobolRule {
     });
   }
 
-  private void checkDataReference(BaseNode stmt, DataReference ref, final Set<DataEntry> initialized, RuleContext ctx) {
+  private void checkDataReference(BaseNode stmt, DataReference ref, DataEntryIndex entries, long[] initialized, RuleContext ctx) {
     DataEntry de = ref.getDataEntry();
     // If not in working-storage or local-storage, data is initialized externally, so ignore
     Section section = de.getSection();
     if(section == null || !SECTIONS_TO_CHECK.contains(section.getName())) return;
+    // Data declared outside the DATA DIVISION indexed (e.g. GLOBAL data of a containing program) is not tracked
+    int id = entries.idOf(de);
+    if(id < 0) return;
     if(ref.isDefinition()) {
       // data value set in the statement, assumed that it is properly initialized
-      // (the data item and all of its children implicitely)
-      de.accept(new NodeVisitor() {
-        public void visit(BaseNode node) {
-          if(node instanceof DataEntry) {
-            markAsInitialized((DataEntry)node, initialized);
-          }
-        }
-      });
-    } else {
+      // (the data item and all of its children implicitely, including REDEFINES aliased data)
+      entries.markWritten(id, initialized);
+    } else if(ctx != null) {
       // An usage, check if the data entry has VALUE (initialized) or was previously initialized
-      if(!checkInitialized(de, initialized)) {
+      if(!checkInitialized(de, id, entries, initialized)) {
         String msg = MessageFormat.format("{0}: Data entry {1} read but not initialized", getMessage(), de.getName());
         addViolation(violation(ctx, stmt, msg), ctx);
       }
     }
   }
 
-  // Register dataEntry and all successors as initialized, including REDEFINES aliased data
-  private void markAsInitialized(DataEntry dataEntry, final Set<DataEntry> initialized) {
-    dataEntry.accept(new NodeVisitor() {
-      public void visit(BaseNode subfield) {
-        if(subfield instanceof DataEntry) {
-          initialized.add((DataEntry)subfield);
-        }
-      }
-    });
-    if(dataEntry.isRedefines()) {
-      DataEntry target = dataEntry.getRedefinesTarget();
-      if(target != null) {
-        markAsInitialized(target, initialized);
-      }
-    }
-  }
-
-  private boolean checkInitialized(DataEntry de, Set<DataEntry> initialized) {
+  private boolean checkInitialized(DataEntry de, int id, DataEntryIndex entries, long[] initialized) {
     // check if the data entry has VALUE (initialized) or was previously initialized
-    if(de.getValueNode().isNotNull() || initialized.contains(de)) return true;
+    if(de.getValueNode().isNotNull() || entries.isSet(id, initialized)) return true;
     // ... but could be a REDEFINES, check if the "alias" was initialized
-    if(de.isRedefines()) {
-      DataEntry target = de.getRedefinesTarget();
-      if(target != null && initialized.contains(target)) return true;
+    return entries.isSet(entries.getRedefinesTarget(id), initialized);
+  }
+
+  // target = target AND other, returns true if target was changed
+  private static boolean intersect(long[] target, long[] other) {
+    boolean changed = false;
+    for(int i = 0; i < target.length; i++) {
+      long v = target[i] & other[i];
+      if(v != target[i]) {
+        target[i] = v;
+        changed = true;
+      }
     }
-    return false;
+    return changed;
   }
 }
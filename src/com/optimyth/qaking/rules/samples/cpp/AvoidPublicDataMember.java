@@ -7,7 +7,10 @@
 package com.optimyth.qaking.rules.samples.cpp;
 
 import com.als.core.RuleContext;
+import com.als.core.ast.BaseNode;
 import com.optimyth.cpp.rules.CppXPathRule;
+import com.optimyth.qaking.rules.samples.util.CompiledXPath;
+import com.optimyth.qaking.rules.samples.util.XPathRuleDispatcher;
 
 /**
  * AvoidPublicDataMember - Avoid class data members that are public, because they can be changed from anywhere.
@@ -29,16 +32,49 @@ import com.optimyth.cpp.rules.CppXPathRule;
  * As an exercice, try to find alternate XPath operating on low-level tree (much more complex !),
  * and explore other implementations based on Query API, predicates, etc.
  * <p/>
+ * The XPath expression is compiled into a direct tree matcher (see {@link CompiledXPath}), avoiding the
+ * generic XPath interpreter, and matched in a single traversal shared with other compiled XPath rules
+ * (see {@link XPathRuleDispatcher}). Set property <em>compiledXPath</em> to false to use the interpreter instead.
+ * <p/>
  * NOTE: A similar standard rule <em>OPT.CPP.AvoidPublicDataMember</em> is provided.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 18-02-2014
  */
-public class AvoidPublicDataMember extends CppXPathRule {
+public class AvoidPublicDataMember extends CppXPathRule implements XPathRuleDispatcher.DispatchedRule {
 
   // XPath: go to high-level tree, then search for any field (as class child) been public and non-constant.
+  private static final String PUBLIC_DATA_MEMBER = "qak:hla()//Class/Field[@Public='true'][@Constant='false']";
+
+  private static final String TECHNOLOGY = "cpp";
+
+  private CompiledXPath compiled;
+
   @Override public void initialize(RuleContext ctx) {
-    addProperty(XPATH_PROP, "qak:hla()//Class/Field[@Public='true'][@Constant='false']");
+    addProperty(XPATH_PROP, PUBLIC_DATA_MEMBER);
     super.initialize(ctx);
+    // Evaluate XPath with a compiled matcher, unless disabled in 'compiledXPath' property
+    compiled = getProperty("compiledXPath", true) ? CompiledXPath.compile(getProperty(XPATH_PROP, PUBLIC_DATA_MEMBER)) : null;
+    if(compiled != null) XPathRuleDispatcher.register(TECHNOLOGY, this);
+  }
+
+  @Override public void postProcess(RuleContext ctx) {
+    XPathRuleDispatcher.unregister(TECHNOLOGY, this);
+    super.postProcess(ctx);
+  }
+
+  @Override protected void visit(BaseNode root, RuleContext ctx) {
+    if(compiled == null) {
+      super.visit(root, ctx); // XPath interpreter
+      return;
+    }
+    // Matches are received from the single traversal shared with other compiled XPath rules
+    XPathRuleDispatcher.dispatch(TECHNOLOGY, this, root, ctx);
+  }
+
+  public CompiledXPath getCompiledXPath() { return compiled; }
+
+  public void onMatch(BaseNode field, RuleContext ctx) {
+    reportViolation(field, ctx);
   }
 }
@@ -7,10 +7,13 @@
 package com.optimyth.qaking.rules.samples.cpp;
 
 import com.als.core.RuleContext;
+import com.als.core.RuleViolation;
 import com.als.core.ast.BaseNode;
 import com.als.core.ast.NodePredicate;
 import com.als.core.ast.NodePredicates;
 import com.als.core.ast.TreeNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.optimyth.cpp.rules.AbstractCppRule;
 import com.optimyth.qaking.codeanalysis.controlflow.ControlFlowNavigator;
 import com.optimyth.qaking.codeanalysis.controlflow.ControlFlowVisitor;
@@ -25,10 +28,13 @@ import com.optimyth.qaking.cpp.util.DeclarationUtil;
 import com.optimyth.qaking.cpp.util.ExpressionUtil;
 import com.optimyth.qaking.cpp.util.FunctionSignature;
 import com.optimyth.qaking.cpp.util.FunctionUtil;
+import com.optimyth.qaking.rules.samples.util.IdentityLru;
 import com.optimyth.tags.Tags;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.optimyth.qaking.cpp.hla.primitives.CppPredicates.*;
 import static com.optimyth.qaking.cpp.hla.primitives.CppPredicates.ARRAY_SUBSCRIPT;
@@ -50,6 +56,11 @@ import static com.optimyth.qaking.cpp.hla.primitives.CppPredicates.BOOLEAN_EXPR;
  * <p/>
  * In some situations and platforms, dereferencing a null pointer can lead to the execution of arbitrary code.
  * <p/>
+ * Calls to user functions are checked too: a user function "may return null" when it returns without check
+ * the result of a call that may return null. As this depends on the other source files, calls to user functions
+ * are registered while visiting, and checked in postProcess against the summaries computed for all
+ * user functions (see {@link NullReturnSummaries}), so results do not depend on the order of source files.
+ * <p/>
  * NOTE: This rule is fairly complex. The standard provided <em>OPT.C.CERTC.EXP34</em> rule works similar to this sample.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
@@ -59,129 +70,291 @@ public class CheckNullPointerDereference extends AbstractCppRule {
 
   private static final String TAG_PREFIX = "nullptr:";
 
-  private Map<String, NullPointerFunction> nullptrFunctions;
+  // User functions are modelled as returning null in return value, with no errno support
+  private static final NullPointerFunction USER_FUNCTION = new NullPointerFunction(null, -1);
+
+  // Library functions that could produce null, compiled once for each Libraries instance (metadata loaded)
+  private static final IdentityLru<Libraries, Map<String, NullPointerFunction>> compiledMetadata =
+    new IdentityLru<Libraries, Map<String, NullPointerFunction>>(4);
+
+  private Map<String, NullPointerFunction> nullptrFunctions; // library functions (from metadata)
+  private NullReturnSummaries summaries; // user functions
 
   @Override public void initialize(RuleContext ctx) {
     super.initialize(ctx);
-    // load library metadata, as function behaviour with regard to null pointers in calls is needed
-    loadMetadata(ctx);
+    // load library metadata, as function behaviour with regard to null pointers in calls is needed.
+    // Tags are parsed only the first time the libraries are seen, and visiting a call needs a single lookup
+    Libraries libs = loadLibraries(ctx);
+    Map<String, NullPointerFunction> functions = compiledMetadata.get(libs);
+    // if two rules compile it at the same time, both maps are equivalent
+    nullptrFunctions = functions != null ? functions : compiledMetadata.put(libs, compileMetadata(libs));
+    summaries = new NullReturnSummaries();
   }
 
-  /** Operate on calls on functions that return a potential null pointer */
+  /** Operate on calls on functions that return a potential null pointer, all calls in a function checked together */
   @Override protected void doVisit(BaseNode node, RuleContext ctx) {
-    if(C_FUNCTION_CALL.is(node)) {
-      String fname = FunctionUtil.getCFunctionCallSignature(node);
-      NullPointerFunction npf = nullptrFunctions.get(fname);
-      if(npf != null) {
-        TreeNode call = TreeNode.on(node);
-        if( isMemoryAccessedWithoutNullCheck(call, npf, ctx) ) {
-          ctx.getReport().addRuleViolation( violation(ctx, call) );
-        }
-      }
+    if(FUNCTION_DEFINITION.is(node)) {
+      checkFunction(node, ctx);
     }
   }
 
-  private boolean isMemoryAccessedWithoutNullCheck(TreeNode call, NullPointerFunction npf, RuleContext ctx) {
-    if(isNullChecked(call)) return false; // Check done in same point of assignment, like if( (v=malloc(...)) == NULL ) ...
+  private void checkFunction(BaseNode function, RuleContext ctx) {
+    // Null check problems for the calls in the function (not in nested function definitions)
+    List<NullCheckProblem> problems = Lists.newArrayList();
+    List<DataFlowNode> starts = Lists.newArrayList();
+    for(BaseNode node : TreeNode.on(function).findAll(C_FUNCTION_CALL)) {
+      TreeNode call = TreeNode.on(node);
+      if(call.ancestor("function_definition").get() != function) continue;
+      if(isNullChecked(call)) continue; // Check done in same point of assignment, like if( (v=malloc(...)) == NULL ) ...
 
-    // Parse the call to get info about the variable to check
-    final NullCheckProblem problem = NullCheckProblem.compile(call, npf);
-    if(problem == null) return false; // nothing could be said
+      // Could be a user function returning null, but this is known only when all source files were visited
+      String fname = FunctionUtil.getCFunctionCallSignature(node);
+      NullPointerFunction npf = nullptrFunctions.get(fname);
+      if(npf == null) npf = USER_FUNCTION;
 
-    // Prepare flow graph
-    final DataFlowNode start = getDataFlowNode(call, ctx);
-    if(start==null) return false;
+      // Parse the call to get info about the variable to check
+      NullCheckProblem problem = NullCheckProblem.compile(call, fname, npf);
+      if(problem == null) continue; // nothing could be said
 
-    final AtomicBoolean isNullChecked = new AtomicBoolean(false);
-    final AtomicBoolean isMemoryAccessedWithoutNullCheck = new AtomicBoolean(false);
-    final AtomicBoolean isPotentialNullReturned = new AtomicBoolean(false);
+      // Prepare flow graph
+      DataFlowNode start = getDataFlowNode(call, ctx);
+      if(start == null) continue;
 
-    // Forward DFA for checks on null candidate, and behaviour
+      problems.add(problem);
+      starts.add(start);
+    }
+    if(problems.isEmpty()) return;
+
+    // Forward DFA for checks on null candidates, and behaviour
     // (checked for null/errno, ptr returned without check, ptr dereferenced)
-    analyzeNullCheck(problem, start, isNullChecked, isMemoryAccessedWithoutNullCheck, isPotentialNullReturned);
+    NullCheckResult[] results = analyzeNullChecks(problems, starts);
+
+    String functionName = null; // computed only when needed
+    for(int i = 0; i < results.length; i++) {
+      NullCheckProblem problem = problems.get(i);
+      NullCheckResult result = results[i];
+      if(!result.isNullReturned() && !result.isMemoryAccessedWithoutNullCheck()) continue;
+      if(functionName == null) functionName = NullPointerFunction.create(TreeNode.on(function), -1).getFunctionName();
+
+      if(problem.getNullPointerFunction() == USER_FUNCTION) {
+        // result not stored in a pointer variable: the called function does not return a pointer
+        if(problem.getVarDeclarator().child("pointer").isNull()) continue;
+        // call location registered now, violation reported in postProcess if the called function may return null
+        summaries.addCall(
+          functionName, problem.getCalledFunction(),
+          result.isNullReturned(), result.isMemoryAccessedWithoutNullCheck(),
+          ctx.getSourceCodeFilename(), problem.getCall().findLine()
+        );
 
-    if(!isNullChecked.get() && isPotentialNullReturned.get()) {
-      // If function may return null without check, register this function as a NullPointerFunction
-      NullPointerFunction current = NullPointerFunction.create(call.ancestor("function_definition"), -1);
-      nullptrFunctions.put(current.getFunctionName(), current);
+      } else {
+        if(result.isNullReturned()) {
+          // If function may return null without check, register it so calls to this function are checked too
+          summaries.mayReturnNull(functionName);
+        }
+        if(result.isMemoryAccessedWithoutNullCheck()) {
+          ctx.getReport().addRuleViolation( violation(ctx, problem.getCall()) );
+        }
+      }
     }
-
-    return isMemoryAccessedWithoutNullCheck.get(); // If true, violation !!!
   }
 
   /**
-   * Traverse control-flow graph (CFG) forward from the "nullpointer" call
-   * to check if target pointer is checked against null ('neutralized')
+   * Traverse control-flow graph (CFG) forward from the "nullpointer" calls in a function
+   * to check if each target pointer is checked against null ('neutralized')
    * or it is dereferenced somewhere/somehow ('potential null pointer dereference').
+   * <p/>
+   * All calls are analyzed in the same forward dataflow pass: the state at each CFG node is the set
+   * of problems 'alive' in some path reaching the node (target pointer set by the call and not yet redefined,
+   * checked or dereferenced), as a bitset. A node is processed again only when its state grows, so each node
+   * is processed at most once per call in the worst case (nodes x calls), but each pass handles 64 calls
+   * per bitset word, instead of one CFG traversal per call.
    *
    * Note: no alias analysis done, ptr could be asigned to other pointer, etc.
    */
-  private void analyzeNullCheck(final NullCheckProblem problem, final DataFlowNode start, final AtomicBoolean nullChecked, final AtomicBoolean memoryAccessedWithoutNullCheck, final AtomicBoolean potentialNullReturned) {
-    ControlFlowNavigator.forwardBFT(start, new ControlFlowVisitor() {
-      public boolean onDataFlowNode(IDataFlowNode node) {
-        if (start == node) return true;
-        // Find variable usages for target pointer variable
-        for (IVarRef va : node.getVariableAccesses()) {
-          if (problem.getVarDeclarator().equals(va.getDeclaration())) {
-            if (va.isDefinition() || va.isUndefinition()) return false; // redefinition, terminate
+  private NullCheckResult[] analyzeNullChecks(List<NullCheckProblem> problems, List<DataFlowNode> starts) {
+    int count = problems.size();
+    boolean[] nullChecked = new boolean[count];
+    boolean[] memoryAccessedWithoutNullCheck = new boolean[count];
+    boolean[] potentialNullReturned = new boolean[count];
+
+    // Number CFG nodes reachable from the calls
+    final List<IDataFlowNode> nodes = Lists.newArrayList();
+    final Map<IDataFlowNode, Integer> nodeIds = Maps.newIdentityHashMap();
+    for(DataFlowNode start : starts) {
+      if(nodeIds.containsKey(start)) continue;
+      ControlFlowNavigator.forwardBFT(start, new ControlFlowVisitor() {
+        public boolean onDataFlowNode(IDataFlowNode node) {
+          if(nodeIds.containsKey(node)) return false; // already numbered from other call
+          nodeIds.put(node, nodes.size());
+          nodes.add(node);
+          return true;
+        }
+      });
+    }
+
+    // Problems starting at each node, and problems by target variable name
+    int words = (count + 63) >>> 6;
+    long[][] gen = new long[nodes.size()][];
+    Map<String, List<Integer>> byVariable = Maps.newHashMap();
+    for(int p = 0; p < count; p++) {
+      int start = nodeIds.get(starts.get(p));
+      if(gen[start] == null) gen[start] = new long[words];
+      gen[start][p >>> 6] |= 1L << p;
+
+      String varName = problems.get(p).getVarName();
+      List<Integer> sameVar = byVariable.get(varName);
+      if(sameVar == null) byVariable.put(varName, sameVar = Lists.newArrayListWithCapacity(2));
+      sameVar.add(p);
+    }
+
+    // in[n] = problems alive in some path reaching node n (null while n not reached)
+    long[][] in = new long[nodes.size()][];
+    int[] worklist = new int[nodes.size()];
+    boolean[] queued = new boolean[nodes.size()];
+    int head = 0, pending = 0;
+    for(int n = 0; n < gen.length; n++) {
+      if(gen[n] == null) continue;
+      in[n] = new long[words];
+      worklist[pending++] = n;
+      queued[n] = true;
+    }
+
+    long[] state = new long[words];
+    while(pending > 0) {
+      int n = worklist[head];
+      head = (head + 1) % worklist.length;
+      pending--;
+      queued[n] = false;
+
+      // Problems starting at the node are not checked on the node itself
+      IDataFlowNode node = nodes.get(n);
+      System.arraycopy(in[n], 0, state, 0, words);
+      if(gen[n] != null) andNot(state, gen[n]);
+
+      // Find variable usages for target pointer variables
+      for (IVarRef va : node.getVariableAccesses()) {
+        List<Integer> sameVar = byVariable.get(va.getVariableName());
+        if(sameVar != null) {
+          for(int p : sameVar) {
+            if(!isSet(state, p) || !problems.get(p).getVarDeclarator().equals(va.getDeclaration())) continue;
+            if (va.isDefinition() || va.isUndefinition()) {
+              clear(state, p); // redefinition, terminate
+              continue;
+            }
 
             // analyze if check with NULL
             TreeNode unaryExp = TreeNode.on(va.getReference());
             if (isNullChecked(unaryExp)) {
-              nullChecked.set(true);
-              return false; // null-checked, terminate analysis
+              nullChecked[p] = true;
+              clear(state, p); // null-checked, terminate analysis
 
             } else if (isPtrDereference(unaryExp)) {
               // (dangerous) access to memory contents, terminate path analysis
-              memoryAccessedWithoutNullCheck.set(true);
-              return false;
+              memoryAccessedWithoutNullCheck[p] = true;
+              clear(state, p);
 
             } else if (unaryExp.hasAncestor(RETURN)) {
               // potential null pointer returned, user function needs to be registered
-              potentialNullReturned.set(true);
+              potentialNullReturned[p] = true;
             }
+          }
 
-          } else if (problem.getNullPointerFunction().isErrnoSupported() && "errno".equals(va.getVariableName())) {
-            // errno check is allowed (but discouraged anyway in recent C versions)
-            if (isErrnoChecked(TreeNode.on(va.getReference()))) {
-              nullChecked.set(true);
-              return false; // errno-checked, terminate analysis
+        } else if ("errno".equals(va.getVariableName()) && isErrnoChecked(TreeNode.on(va.getReference()))) {
+          // errno check is allowed (but discouraged anyway in recent C versions)
+          for(int p = 0; p < count; p++) {
+            if(isSet(state, p) && problems.get(p).getNullPointerFunction().isErrnoSupported()) {
+              nullChecked[p] = true;
+              clear(state, p); // errno-checked, terminate analysis
             }
           }
         }
-
-        return true; // go to next statement in CFG
       }
 
-      private boolean isErrnoChecked(TreeNode unaryExp) {
-        return unaryExp.hasAncestor(BOOLEAN_EXPR) || unaryExp.ancestor("expression").parent(SWITCH).isNotNull();
+      if(gen[n] != null) or(state, gen[n]);
+
+      // go to next statements in CFG
+      for(IDataFlowNode succ : node.getChildren()) {
+        Integer s = nodeIds.get(succ);
+        if(s == null) continue;
+        boolean changed;
+        if(in[s] == null) {
+          in[s] = state.clone();
+          changed = true;
+        } else {
+          changed = or(in[s], state);
+        }
+        if(changed && !queued[s]) {
+          worklist[(head + pending) % worklist.length] = s;
+          pending++;
+          queued[s] = true;
+        }
       }
+    }
 
-      private final NodePredicate DEREF_OP = NodePredicates.or(INDIRECTION, PTR_MEMBER, C_FUNCTION_CALL);
+    NullCheckResult[] results = new NullCheckResult[count];
+    for(int p = 0; p < count; p++) {
+      results[p] = new NullCheckResult(memoryAccessedWithoutNullCheck[p], !nullChecked[p] && potentialNullReturned[p]);
+    }
+    return results;
+  }
 
-      // ptr[] or *ptr or ptr->f are dereferences
-      private boolean isPtrDereference(TreeNode unaryExp) {
-        return unaryExp.has(ARRAY_SUBSCRIPT) || unaryExp.hasAncestor(DEREF_OP);
-      }
+  private boolean isErrnoChecked(TreeNode unaryExp) {
+    return unaryExp.hasAncestor(BOOLEAN_EXPR) || unaryExp.ancestor("expression").parent(SWITCH).isNotNull();
+  }
+
+  private static final NodePredicate DEREF_OP = NodePredicates.or(INDIRECTION, PTR_MEMBER, C_FUNCTION_CALL);
+
+  // ptr[] or *ptr or ptr->f are dereferences
+  private boolean isPtrDereference(TreeNode unaryExp) {
+    return unaryExp.has(ARRAY_SUBSCRIPT) || unaryExp.hasAncestor(DEREF_OP);
+  }
+
+  // bitset utilities
+
+  private static boolean isSet(long[] bits, int i) { return (bits[i >>> 6] & (1L << i)) != 0; }
+
+  private static void clear(long[] bits, int i) { bits[i >>> 6] &= ~(1L << i); }
 
-    });
+  private static void andNot(long[] target, long[] other) {
+    for(int i = 0; i < target.length; i++) target[i] &= ~other[i];
+  }
+
+  // target = target OR other, returns true if target was changed
+  private static boolean or(long[] target, long[] other) {
+    boolean changed = false;
+    for(int i = 0; i < target.length; i++) {
+      long v = target[i] | other[i];
+      if(v != target[i]) {
+        target[i] = v;
+        changed = true;
+      }
+    }
+    return changed;
   }
 
   @Override public void postProcess(RuleContext ctx) {
     super.postProcess(ctx);
+
+    // With all source files visited, report calls to user functions that may return null (directly or
+    // returning the result of other function that may return null), when dereferenced without null check
+    for(NullReturnSummaries.CallFact call : summaries.solve()) {
+      ctx.getReport().addRuleViolation( new RuleViolation(this, call.getLine(), getMessage(), call.getFile()) );
+    }
+
     nullptrFunctions = null;
+    summaries = null;
   }
 
   private boolean isNullChecked(TreeNode unaryExp) {
     return unaryExp.hasAncestor(BOOLEAN_EXPR);
   }
 
-  // Load API functions that could produce null (typically as return value or in modifiable pointer argument)
+  // API functions in libs that could produce null (typically as return value or in modifiable pointer argument).
   // Such functions have tags element with nullptr:i where i is the argument position (-1 or 0..N-1)
   // where null exits the function
-  private void loadMetadata(RuleContext ctx) {
-    nullptrFunctions = createSynchronizedMap(30);
-    Libraries libs = loadLibraries(ctx);
+  private static Map<String, NullPointerFunction> compileMetadata(Libraries libs) {
+    // not modified once compiled, so could be read while visiting (possibly in parallel) source files
+    Map<String, NullPointerFunction> functions = new HashMap<String, NullPointerFunction>(64);
     for(FunctionDescriptor fd : libs.functions()) {
       Tags tags = fd.getTags();
       for(String v : tags.values()) {
@@ -189,10 +362,11 @@ public class CheckNullPointerDereference extends AbstractCppRule {
           String argPosStr = v.substring(TAG_PREFIX.length());
           int argPos = Integer.parseInt(argPosStr);
           NullPointerFunction npf = new NullPointerFunction(fd, argPos);
-          nullptrFunctions.put(fd.getName(), npf);
+          functions.put(fd.getName(), npf);
         }
       }
     }
+    return Collections.unmodifiableMap(functions);
   }
 
   /**
@@ -218,29 +392,52 @@ public class CheckNullPointerDereference extends AbstractCppRule {
 
     public FunctionDescriptor getFunctionDescriptor() { return functionDescriptor; }
     public String getFunctionName() { return functionDescriptor.getName(); }
-    public boolean isErrnoSupported() { return ErrorProcessingType.errno == functionDescriptor.getErrorProcessing(); }
+    public boolean isErrnoSupported() { return functionDescriptor != null && ErrorProcessingType.errno == functionDescriptor.getErrorProcessing(); }
     public int getArgPos() { return argPos; }
   }
 
+  /** Result of the null check analysis on a call: pointer dereferenced and/or returned without null check */
+  private static final class NullCheckResult {
+    private final boolean memoryAccessedWithoutNullCheck;
+    private final boolean nullReturned;
+
+    private NullCheckResult(boolean memoryAccessedWithoutNullCheck, boolean nullReturned) {
+      this.memoryAccessedWithoutNullCheck = memoryAccessedWithoutNullCheck;
+      this.nullReturned = nullReturned;
+    }
+
+    public boolean isMemoryAccessedWithoutNullCheck() { return memoryAccessedWithoutNullCheck; }
+    public boolean isNullReturned() { return nullReturned; }
+  }
+
   /**
-   * A NULL check problem is defined by the call, the NullPointerFunction modelling
+   * A NULL check problem is defined by the call (and the function called), the NullPointerFunction modelling
    * the function that need check for null, and the target var and its declaration.
    * If target is not a simple variable reference or its declaration cannot be found,
    * compile() returns null to indicate that call cannot be tested for NULL checks.
    */
   private static final class NullCheckProblem {
+    private final TreeNode call;
+    private final String calledFunction;
     private final NullPointerFunction nullPointerFunction; // descriptor for nullptr returning function
-    private final TreeNode varDeclarator; // declaration of target var (candidate null pointer) to check
+    private final String varName; // target var (candidate null pointer) to check
+    private final TreeNode varDeclarator; // declaration of target var
 
-    private NullCheckProblem(NullPointerFunction nullPointerFunction, TreeNode varDeclarator) {
+    private NullCheckProblem(TreeNode call, String calledFunction, NullPointerFunction nullPointerFunction, String varName, TreeNode varDeclarator) {
+      this.call = call;
+      this.calledFunction = calledFunction;
       this.nullPointerFunction = nullPointerFunction;
+      this.varName = varName;
       this.varDeclarator = varDeclarator;
     }
 
+    public TreeNode getCall() { return call; }
+    public String getCalledFunction() { return calledFunction; }
     public NullPointerFunction getNullPointerFunction() { return nullPointerFunction; }
+    public String getVarName() { return varName; }
     public TreeNode getVarDeclarator() { return varDeclarator; }
 
-    private static NullCheckProblem compile(TreeNode call, NullPointerFunction npf) {
+    private static NullCheckProblem compile(TreeNode call, String calledFunction, NullPointerFunction npf) {
       TreeNode exp = FunctionUtil.getExpression(call, npf.getArgPos());
       if(exp.isNull()) return null; // nothing could be said
 
@@ -265,7 +462,7 @@ public class CheckNullPointerDereference extends AbstractCppRule {
       // No LHS simple varname nor declaration found
       if(varName == null || varDeclarator == null || varDeclarator.isNull()) return null;
 
-      return new NullCheckProblem(npf, varDeclarator);
+      return new NullCheckProblem(call, calledFunction, npf, varName, varDeclarator);
     }
   }
 
@@ -0,0 +1,137 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.cpp;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NullReturnSummaries - "May return null" summaries for user functions, used by {@link CheckNullPointerDereference}.
+ * <p/>
+ * While visiting source files, the rule registers the functions that return (without null check) a pointer
+ * obtained from a library function that could return null, and the calls to other user functions
+ * whose result is returned or dereferenced without null check. Registration does not take locks,
+ * so source files could be visited in parallel.
+ * <p/>
+ * When all source files were visited, {@link #solve()} propagates "may return null" from callees to callers
+ * (up to a fixpoint on the call graph), and returns the calls dereferencing a potential null pointer.
+ * Results do not depend on the order source files were visited.
+ */
+final class NullReturnSummaries {
+  private final ConcurrentMap<String, Integer> functionIds = new ConcurrentHashMap<String, Integer>(256);
+  private final AtomicInteger nextId = new AtomicInteger(0);
+  private final Set<Integer> mayReturnNull = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+  private final Queue<CallFact> calls = new ConcurrentLinkedQueue<CallFact>();
+
+  // Intern function name, returning its id (-1 for null function, e.g. call outside a function definition)
+  private int idOf(String function) {
+    if(function == null) return -1;
+    Integer id = functionIds.get(function);
+    if(id == null) {
+      Integer newId = nextId.getAndIncrement();
+      id = functionIds.putIfAbsent(function, newId);
+      if(id == null) id = newId;
+    }
+    return id;
+  }
+
+  /** Register that function may return null (it returns a potential null pointer without check) */
+  void mayReturnNull(String function) {
+    int id = idOf(function);
+    if(id >= 0) mayReturnNull.add(id);
+  }
+
+  /**
+   * Register a call from caller to callee (user function) whose result is returned by caller
+   * and/or dereferenced without null check. Only the call location is kept (not the AST), so facts
+   * for all source files could be kept until {@link #solve()}.
+   */
+  void addCall(String caller, String callee, boolean returned, boolean dereferenced, File file, int line) {
+    calls.add(new CallFact(idOf(caller), idOf(callee), returned, dereferenced, file, line));
+  }
+
+  /**
+   * Compute the functions that may return null (directly, or returning unchecked the result of another
+   * function that may return null), and return the calls to such functions dereferenced without null check,
+   * sorted by file and line.
+   */
+  List<CallFact> solve() {
+    int size = nextId.get();
+
+    // calls by callee id
+    List<List<CallFact>> callsTo = Lists.newArrayListWithCapacity(size);
+    for(int i = 0; i < size; i++) callsTo.add(Collections.<CallFact>emptyList());
+    for(CallFact call : calls) {
+      List<CallFact> list = callsTo.get(call.callee);
+      if(list.isEmpty()) callsTo.set(call.callee, list = Lists.newArrayListWithCapacity(2));
+      list.add(call);
+    }
+
+    // Worklist: each function becomes "may return null" only once, so at most size entries
+    boolean[] nullable = new boolean[size];
+    int[] worklist = new int[size];
+    int pending = 0;
+    for(int id : mayReturnNull) {
+      nullable[id] = true;
+      worklist[pending++] = id;
+    }
+    while(pending > 0) {
+      int callee = worklist[--pending];
+      for(CallFact call : callsTo.get(callee)) {
+        if(call.returned && call.caller >= 0 && !nullable[call.caller]) {
+          nullable[call.caller] = true;
+          worklist[pending++] = call.caller;
+        }
+      }
+    }
+
+    List<CallFact> dereferences = Lists.newArrayList();
+    for(CallFact call : calls) {
+      if(call.dereferenced && nullable[call.callee]) dereferences.add(call);
+    }
+    Collections.sort(dereferences, BY_LOCATION);
+    return dereferences;
+  }
+
+  private static final Comparator<CallFact> BY_LOCATION = new Comparator<CallFact>() {
+    public int compare(CallFact c1, CallFact c2) {
+      int cmp = c1.file.getPath().compareTo(c2.file.getPath());
+      return cmp != 0 ? cmp : (c1.line < c2.line ? -1 : (c1.line == c2.line ? 0 : 1));
+    }
+  };
+
+  /** Call to a user function, with the usage of its result in caller */
+  static final class CallFact {
+    private final int caller;
+    private final int callee;
+    private final boolean returned;
+    private final boolean dereferenced;
+    private final File file;
+    private final int line;
+
+    private CallFact(int caller, int callee, boolean returned, boolean dereferenced, File file, int line) {
+      this.caller = caller;
+      this.callee = callee;
+      this.returned = returned;
+      this.dereferenced = dereferenced;
+      this.file = file;
+      this.line = line;
+    }
+
+    public File getFile() { return file; }
+    public int getLine() { return line; }
+  }
+}
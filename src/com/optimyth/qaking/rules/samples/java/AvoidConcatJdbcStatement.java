@@ -10,14 +10,11 @@ import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
 import com.als.core.ast.NodePredicate;
 import com.als.core.ast.TreeNode;
-import com.optimyth.qaking.java.tainting.StringConcatTaintingPropagation;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableSet;
 import com.optimyth.qaking.highlevelapi.ast.common.HLAVariableDeclaration;
 import com.optimyth.qaking.highlevelapi.dsl.Query;
-import com.optimyth.qaking.highlevelapi.nodeset.NodeSet;
 
-import static com.als.clases.JavaRuleUtils.report;
 import static com.optimyth.qaking.highlevelapi.dsl.Query.query;
 import static com.optimyth.qaking.highlevelapi.matchers.HLAPredicates.variables;
 import static com.optimyth.qaking.highlevelapi.matchers.HLAPredicates.variablesInTypes;
@@ -31,6 +28,8 @@ import static com.optimyth.qaking.java.hla.JavaPredicates.calls;
  * <p/>
  * This is just to show how to match calls of interest with the high-level API
  * and perform simple tainting propagation, not intended for production code.
+ * Propagation results for a SQL variable are shared by all the calls using it, and by other rules
+ * on the same file (see {@link TaintVerdicts}).
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 10-12-2013
@@ -43,16 +42,43 @@ public class AvoidConcatJdbcStatement extends AbstractRule {
   // Check for calls to Statement methods with SQL in first arg
   private static final NodePredicate JDBC_CALL = calls(ImmutableSet.of("execute", "executeQuery", "executeUpdate", "addBatch"));
 
-  // Find calls of interest: Statement.execute ... Statement.addBatch
-  private final Query jdbcCalls = query().find( variables(JDBC_STATEMENT) ).find(JDBC_CALL, navigateToCalls);
-  
+  @Override public void postProcess(RuleContext ctx) {
+    TaintVerdicts.clear();
+    super.postProcess(ctx);
+  }
+
   @Override protected void visit(BaseNode root, RuleContext ctx) {
-    NodeSet calls = jdbcCalls.run(this, ctx, ctx.getHighLevelTree()).current();
-    for(BaseNode call : calls) {
+    // Tainting propagation results are shared by the calls in the file using the same SQL variable
+    TaintVerdicts verdicts = TaintVerdicts.of(root);
+    TaintedSql taintedSql = new TaintedSql(verdicts);
+    long start = System.currentTimeMillis();
+    long propagating = verdicts.getPropagationMillis();
+
+    // Find calls of interest: Statement.execute ... Statement.addBatch, and report calls with tainted SQL
+    // as they pass the filter (no set of all the calls found is built and traversed again)
+    Query badCalls = query()
+      .find( variables(JDBC_STATEMENT) ).find(JDBC_CALL, navigateToCalls)
+      .filter(taintedSql)
+      .report();
+
+    badCalls.run(this, ctx, ctx.getHighLevelTree());
+
+    if(getLogger().isDebugEnabled()) {
+      propagating = verdicts.getPropagationMillis() - propagating;
+      getLogger().debug("JDBC calls search: " + (System.currentTimeMillis() - start - propagating) + " ms, " +
+        "tainting propagation: " + propagating + " ms. " + verdicts);
+    }
+  }
+
+  // Match JDBC call with first arg expression (the SQL) tainted
+  private static final class TaintedSql implements NodePredicate {
+    private final TaintVerdicts verdicts;
+
+    private TaintedSql(TaintVerdicts verdicts) { this.verdicts = verdicts; }
+
+    public boolean is(BaseNode call) {
       TreeNode arg = TreeNode.on(call).find("ArgumentList").child(0); // first arg expression
-      if(new StringConcatTaintingPropagation().isTainted(arg)) {
-        report(this, call, ctx);
-      }
+      return verdicts.isTainted(arg);
     }
   }
 }
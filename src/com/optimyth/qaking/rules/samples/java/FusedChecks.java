@@ -0,0 +1,137 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.java;
+
+import com.als.core.AbstractRule;
+import com.als.core.RuleContext;
+import com.als.core.ast.BaseNode;
+import com.als.core.ast.NodePredicate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.optimyth.qaking.highlevelapi.dsl.Query;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.optimyth.qaking.highlevelapi.dsl.Query.query;
+
+/**
+ * FusedChecks - Set of "find nodes of a kind, filter, report" checks on the high-level tree,
+ * executed together: the nodes of each kind (from {@link HlaKindIndex}) are iterated once,
+ * and each node is passed to all the checks on that kind.
+ * <p/>
+ * This is what a rule with several queries like <code>query().find(methods(...)).filter(...).report()</code>
+ * would do, without one traversal per query; matched nodes are reported through the Query API too.
+ * Checks are fused per rule (the checks of a FusedChecks instance): different rules use their own instances,
+ * sharing only the kind index. {@link #explain()} shows the fused plan. A rule with a single check gains nothing
+ * from fusion, so it should keep its plain Query.
+ * Usage:
+ * <pre>
+ * FusedChecks checks = FusedChecks.builder()
+ *   .check("emptySetter", Kind.METHODS, methods(isSetter), emptyBodyPred)
+ *   .check("returnNullGetter", Kind.METHODS, methods(isGetter), returnsNullPred)
+ *   .build();
+ * ...
+ * checks.run(this, ctx);
+ * </pre>
+ */
+final class FusedChecks {
+
+  /** Kind of the nodes a check looks for */
+  enum Kind {
+    METHODS, TYPES, VARIABLES;
+
+    List<BaseNode> nodes(HlaKindIndex index) {
+      switch(this) {
+        case METHODS: return index.methods();
+        case TYPES: return index.types();
+        default: return index.variables();
+      }
+    }
+  }
+
+  // Report the node the query is run on
+  private static final Query REPORT = query().report();
+
+  private final Map<Kind, Check[]> checksByKind;
+
+  private FusedChecks(Map<Kind, Check[]> checksByKind) {
+    this.checksByKind = checksByKind;
+  }
+
+  static Builder builder() { return new Builder(); }
+
+  /** Run all checks on the high-level tree for current source file, reporting matched nodes as violations of rule */
+  void run(AbstractRule rule, RuleContext ctx) {
+    HlaKindIndex index = HlaKindIndex.of(ctx.getHighLevelTree());
+    for(Map.Entry<Kind, Check[]> e : checksByKind.entrySet()) {
+      Check[] checks = e.getValue();
+      for(BaseNode node : e.getKey().nodes(index)) {
+        for(Check check : checks) {
+          if(check.matches(node)) REPORT.run(rule, ctx, node);
+        }
+      }
+    }
+  }
+
+  /** Description of the fused plan: for each kind, the checks run on each node */
+  String explain() {
+    StringBuilder sb = new StringBuilder("FusedChecks:");
+    for(Map.Entry<Kind, Check[]> e : checksByKind.entrySet()) {
+      sb.append("\n  for each node in ").append(e.getKey().name().toLowerCase()).append(':');
+      for(Check check : e.getValue()) {
+        sb.append("\n    ").append(check.name)
+          .append(": find, ").append(check.filters.length).append(" filter(s), report");
+      }
+    }
+    return sb.toString();
+  }
+
+  static final class Builder {
+    private final Map<Kind, List<Check>> checks = Maps.newEnumMap(Kind.class);
+
+    private Builder() {}
+
+    /** Add check for nodes of the given kind, matching find and all filters (evaluated in order) */
+    Builder check(String name, Kind kind, NodePredicate find, NodePredicate... filters) {
+      List<Check> list = checks.get(kind);
+      if(list == null) {
+        list = Lists.newArrayList();
+        checks.put(kind, list);
+      }
+      list.add(new Check(name, find, filters));
+      return this;
+    }
+
+    FusedChecks build() {
+      Map<Kind, Check[]> checksByKind = Maps.newEnumMap(Kind.class);
+      for(Map.Entry<Kind, List<Check>> e : checks.entrySet()) {
+        checksByKind.put(e.getKey(), e.getValue().toArray(new Check[e.getValue().size()]));
+      }
+      return new FusedChecks(checksByKind);
+    }
+  }
+
+  private static final class Check {
+    private final String name;
+    private final NodePredicate find;
+    private final NodePredicate[] filters;
+
+    private Check(String name, NodePredicate find, NodePredicate[] filters) {
+      this.name = name;
+      this.find = find;
+      this.filters = filters;
+    }
+
+    private boolean matches(BaseNode node) {
+      if(!find.is(node)) return false;
+      for(NodePredicate filter : filters) {
+        if(!filter.is(node)) return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.java;
+
+import com.als.core.ast.BaseNode;
+import com.als.core.ast.NodeVisitor;
+import com.google.common.collect.Lists;
+import com.optimyth.qaking.highlevelapi.ast.oo.HLAMethod;
+import com.optimyth.qaking.java.hla.ast.JavaType;
+import com.optimyth.qaking.java.hla.ast.JavaVariable;
+import com.optimyth.qaking.rules.samples.util.IdentityLru;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HlaKindIndex - Index on the nodes of a high-level (HLA) tree by kind: methods, types and variables.
+ * <p/>
+ * Rules that only look at nodes of a certain kind (like "toString methods" or "public classes") could iterate
+ * the nodes of that kind, instead of running a query that traverses the full tree. The index is built lazily,
+ * with a single traversal, the first time a rule asks for it, and shared by all rules on the same tree
+ * (see {@link IdentityLru}). Nodes are kept in document order. Rules using the index must {@link #clear} it
+ * in postProcess, so no AST is retained after the analysis.
+ * Usage:
+ * <pre>
+ * for(BaseNode method : HlaKindIndex.of(ctx.getHighLevelTree()).methods()) ...
+ * </pre>
+ */
+final class HlaKindIndex {
+
+  private static final IdentityLru<BaseNode, HlaKindIndex> byTree = new IdentityLru<BaseNode, HlaKindIndex>();
+
+  private final List<BaseNode> methods;
+  private final List<BaseNode> types;
+  private final List<BaseNode> variables;
+
+  private HlaKindIndex(BaseNode hlaRoot) {
+    final List<BaseNode> m = Lists.newArrayList();
+    final List<BaseNode> t = Lists.newArrayList();
+    final List<BaseNode> v = Lists.newArrayList();
+    if(hlaRoot != null) {
+      hlaRoot.accept(new NodeVisitor() {
+        public void visit(BaseNode node) {
+          if(node instanceof HLAMethod) m.add(node);
+          else if(node instanceof JavaType) t.add(node);
+          else if(node instanceof JavaVariable) v.add(node);
+        }
+      });
+    }
+    methods = asList(m);
+    types = asList(t);
+    variables = asList(v);
+  }
+
+  // Compact, unmodifiable copy
+  private static List<BaseNode> asList(List<BaseNode> nodes) {
+    if(nodes.isEmpty()) return Collections.emptyList();
+    return Collections.unmodifiableList(Arrays.asList(nodes.toArray(new BaseNode[nodes.size()])));
+  }
+
+  /** Index for the high-level tree (could be null, giving an empty index) */
+  static HlaKindIndex of(BaseNode hlaRoot) {
+    if(hlaRoot == null) return new HlaKindIndex(null);
+    HlaKindIndex index = byTree.get(hlaRoot);
+    // if two rules build it at the same time, both indexes are equivalent
+    if(index == null) index = byTree.put(hlaRoot, new HlaKindIndex(hlaRoot));
+    return index;
+  }
+
+  /** Drop all cached indexes (and the ASTs they reference) */
+  static void clear() {
+    byTree.clear();
+  }
+
+  /** Methods (HLAMethod) in tree */
+  List<BaseNode> methods() { return methods; }
+
+  /** Types (JavaType), including nested and anonymous classes */
+  List<BaseNode> types() { return types; }
+
+  /** Variables (JavaVariable): fields, local variables and parameters */
+  List<BaseNode> variables() { return variables; }
+}
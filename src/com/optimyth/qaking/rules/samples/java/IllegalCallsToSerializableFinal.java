@@ -10,15 +10,18 @@ import com.als.core.AbstractRule;
 import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
 import com.als.core.ast.NodePredicate;
-import com.als.java5.rule.model.sentence.MethodCall;
+import com.als.core.ast.TreeNode;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
 import com.optimyth.qaking.highlevelapi.dsl.Query;
 import es.als.util.StringUtils;
 
 import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.als.core.ast.NodePredicates.or;
-import static com.als.java5.rule.util.ExpressionUtil.parseRefChain;
 import static com.optimyth.qaking.highlevelapi.matchers.HLAPredicates.methods;
 import static com.optimyth.qaking.highlevelapi.dsl.Query.query;
 import static com.optimyth.qaking.highlevelapi.navigation.Navigations.sequence;
@@ -31,50 +34,174 @@ import static com.optimyth.qaking.java.hla.JavaNavigations.*;
  * <p/>
  * Not much sense for quality issues, but interesting as an example of what could be done
  * with the Query API.
+ * <p/>
+ * Resolving the method called (that could be declared in another class) is expensive, so verdicts are cached
+ * for the whole analysis: for each declaring class found, and for unqualified calls in named (not local
+ * or anonymous) classes, by call signature (package, caller class, method name and number of arguments).
+ * The signature does not include argument types, so it identifies the called method only when the caller class
+ * declares a single method with that name and inherits none (it extends no class, and implements no interface
+ * but Serializable): other calls, that could resolve to an overload in a supertype, are resolved each time.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 19-11-2013
  */
 public class IllegalCallsToSerializableFinal extends AbstractRule {
   
-  private Set<String> forbiddenMethodNames = Collections.emptySet();
+  private NameMatcher forbiddenMethodNames = NameMatcher.of(Collections.<String>emptySet());
 
-  // Predicate that will match calls to forbidden methods
+  // Predicate that will match calls to forbidden methods.
+  // Method name is read from the AST (no reference chain is built for each expression)
   private final NodePredicate forbiddenMethods = new NodePredicate() {
     public boolean is(BaseNode node) {
-      if(node.isTypeName("PrimaryExpression")) {
-        // Not very efficient, but easy to read
-        MethodCall call = (MethodCall) parseRefChain(node).getNext();
-        return forbiddenMethodNames.contains( call.getMethodName() );
-      }
-      return false;
+      return node.isTypeName("PrimaryExpression") && isForbiddenCall(TreeNode.on(node));
     }
   };
 
-  // Auxiliar traversal query, going to method definition, then to its container (class),
-  // and then keep only class if serializable or final.
+  // Check name of first method invoked in primary expression: the identifier before the first arguments
+  // (last segment in prefix name, for foo() or a.b.foo(), or the suffix image, for this.foo() or a().foo())
+  private boolean isForbiddenCall(TreeNode primary) {
+    TreeNode previous = primary.child(0); // PrimaryPrefix
+    for(int i = 1; ; i++) {
+      TreeNode suffix = primary.child(i);
+      if(suffix.isNull()) return false; // no call
+      if(suffix.child(0).isTypeName("Arguments")) {
+        boolean inPrefix = previous.isTypeName("PrimaryPrefix");
+        if(inPrefix && !previous.child(0).isTypeName("Name")) return false; // this(...), super(...)
+        String image = inPrefix ? previous.child(0).getImage() : previous.getImage();
+        return image != null && forbiddenMethodNames.matches(image, image.lastIndexOf('.') + 1, image.length());
+      }
+      previous = suffix;
+    }
+  }
+
+  // Auxiliar traversal query, going to method definition, then to its container (class).
   // Please note that definition() is an "inter-AST" facility,
   // that will try to fetch a method definition in (possibly) another class.
-  private final Query inSerialOrFinalClass = query()
-    .navigate(sequence(methodDeclaration, container))
-    .filter(or(isSerializable, isFinalPred));
-
-  // In private methods, find calls to forbidden methods, and keep only calls
-  // to methods reachable by isDefiningClassSerialOrFinal. Such calls are reported
-  private final Query badCalls = query()
-    .find(methods(isPrivate))
-    .find(calls(forbiddenMethods))
-    .filter(inSerialOrFinalClass)
-    .report();
-  
-  @Override protected void visit(BaseNode root, RuleContext ctx) {
-    // Rule simply executes badCalls query
+  private final Query declaringType = query()
+    .navigate(sequence(methodDeclaration, container));
+
+  private final NodePredicate isSerialOrFinal = or(isSerializable, isFinalPred);
+
+  // Verdicts (called method declared in serializable or final class) for unqualified calls,
+  // by call signature (see callKey), shared by all source files in the analysis
+  private final ConcurrentMap<String, Boolean> callVerdicts = new ConcurrentHashMap<String, Boolean>();
+
+  // Serializable or final, for each declaring type found (weak keys, compared by identity)
+  private final ConcurrentMap<BaseNode, Boolean> typeFacts = new MapMaker().weakKeys().makeMap();
+
+  @Override protected void visit(BaseNode root, final RuleContext ctx) {
+    // Keep only calls to methods declared in a serializable or final class, resolving each signature once
+    NodePredicate inSerialOrFinalClass = new NodePredicate() {
+      public boolean is(BaseNode call) {
+        String key = callKey(call);
+        Boolean verdict = key == null ? null : callVerdicts.get(key);
+        return verdict != null ? verdict : resolve(call, key, ctx);
+      }
+    };
+
+    // In private methods, find calls to forbidden methods, and keep only calls
+    // to methods declared in a serializable or final class. Such calls are reported
+    Query badCalls = query()
+      .find(methods(isPrivate))
+      .find(calls(forbiddenMethods))
+      .filter(inSerialOrFinalClass)
+      .report();
+
     badCalls.run(this, ctx, ctx.getHighLevelTree());
   }
 
+  // Navigate from call to the class declaring the called method, and check if serializable or final.
+  // The verdict is cached for key (if not null) when a single declaring class is found
+  private boolean resolve(BaseNode call, String key, RuleContext ctx) {
+    boolean verdict = false;
+    int types = 0;
+    for(BaseNode type : declaringType.run(this, ctx, call).current()) {
+      types++;
+      Boolean fact = typeFacts.get(type);
+      if(fact == null) {
+        fact = isSerialOrFinal.is(type);
+        typeFacts.put(type, fact);
+      }
+      if(fact) {
+        verdict = true;
+        break;
+      }
+    }
+    if(key != null && types == 1) callVerdicts.put(key, verdict);
+    return verdict;
+  }
+
+  // Methods inherited by any class, that a class could overload
+  private static final Set<String> OBJECT_METHODS = ImmutableSet.of(
+    "clone", "equals", "finalize", "getClass", "hashCode", "notify", "notifyAll", "toString", "wait"
+  );
+
+  // Signature for an unqualified call foo(a, b) in a named class: package, enclosing classes, name and arity
+  // (the called method is resolved from the caller class). Returns null for other calls (qualified calls,
+  // calls in anonymous or local classes, calls to methods that could be overloaded in a supertype...),
+  // whose called method depends on more than the call site text.
+  private static String callKey(BaseNode call) {
+    TreeNode primary = TreeNode.on(call);
+    if(!primary.isTypeName("PrimaryExpression") || primary.child(2).isNotNull()) return null;
+    TreeNode name = primary.child(0).child(0);
+    TreeNode args = primary.child(1).child(0);
+    if(!name.isTypeName("Name") || name.getImage() == null || name.getImage().indexOf('.') != -1) return null;
+    if(!args.isTypeName("Arguments")) return null;
+
+    int arity = 0;
+    TreeNode argList = args.child("ArgumentList");
+    if(argList.isNotNull()) while(argList.child(arity).isNotNull()) arity++;
+
+    StringBuilder key = new StringBuilder();
+    key.append(name.getImage()).append('/').append(arity);
+    boolean inType = false;
+    for(TreeNode n = primary.parent(); n.isNotNull(); n = n.parent()) {
+      if(n.isTypeName("AllocationExpression")) return null; // anonymous class body (or its arguments)
+      if(inType && n.isTypeName("Block")) return null; // class declared in a method (local class)
+      if(n.isTypeName("ClassOrInterfaceDeclaration") || n.isTypeName("EnumDeclaration")) {
+        // caller class (the innermost one) should determine the method called
+        if(!inType && !declaresOnlyMethodNamed(n, name.getImage())) return null;
+        inType = true;
+        key.insert(0, n.getImage() + '#');
+      } else if(n.isTypeName("CompilationUnit")) {
+        TreeNode pkg = n.child("PackageDeclaration").find("Name");
+        key.insert(0, (pkg.isNotNull() ? pkg.getImage() : "") + '#');
+      }
+    }
+    return key.toString();
+  }
+
+  // True if the class declares a single method with the given name, and inherits no method
+  // (but Object's, that should not be named so) that an unqualified call to it could resolve to
+  private static boolean declaresOnlyMethodNamed(TreeNode type, String name) {
+    if(!type.isTypeName("ClassOrInterfaceDeclaration") || OBJECT_METHODS.contains(name)) return false;
+    if(type.child("ExtendsList").isNotNull()) return false;
+    TreeNode implemented = type.child("ImplementsList");
+    for(int i = 0; implemented.child(i).isNotNull(); i++) {
+      String itf = implemented.child(i).getImage();
+      if(!"Serializable".equals(itf) && !"java.io.Serializable".equals(itf)) return false;
+    }
+
+    int declared = 0;
+    TreeNode body = type.child("ClassOrInterfaceBody");
+    for(int i = 0; body.child(i).isNotNull(); i++) {
+      TreeNode declarator = body.child(i).child("MethodDeclaration").child("MethodDeclarator");
+      if(name.equals(declarator.getImage())) declared++;
+    }
+    return declared == 1;
+  }
+
   @Override public void initialize(RuleContext ctx) {
     super.initialize(ctx);
     // names for forbidden methods could be configured in rule property 'forbiddenMethodNames'
-    forbiddenMethodNames = StringUtils.asSet(getProperty("forbiddenMethodNames", ""), ',');
+    forbiddenMethodNames = NameMatcher.of(StringUtils.asSet(getProperty("forbiddenMethodNames", ""), ','));
+    callVerdicts.clear();
+    typeFacts.clear();
+  }
+
+  @Override public void postProcess(RuleContext ctx) {
+    super.postProcess(ctx);
+    callVerdicts.clear();
+    typeFacts.clear();
   }
 }
@@ -13,6 +13,7 @@ import com.als.core.ast.NodePredicate;
 import com.als.core.ast.NodeVisitor;
 import com.als.core.ast.TreeNode;
 import com.als.jkingcore.ast.ASTInstanceOfExpression;
+import com.optimyth.qaking.rules.samples.util.TreeWalker;
 
 import static com.als.clases.JavaRuleUtils.report;
 import static com.als.core.ast.TreeNode.on;
@@ -40,11 +41,13 @@ public class InstanceofInCatchBlock extends AbstractRule {
           // Report all usages of instanceof on the exception variable, using the auxiliar predicate
           final NodePredicate pred = hasInstanceOf( getExceptionVariable(catchBlock) );
 
-          on(catchBlock).child("Block").accept(new NodeVisitor() { // find in catch body subtree
-            public void visit(BaseNode badInstanceOf) {
+          TreeWalker.walk(catchBlock.child("Block").get(), new TreeWalker.Visitor() { // find in catch body subtree
+            public TreeWalker.Action enter(BaseNode badInstanceOf) {
               if (pred.is(badInstanceOf)) {
                 report(InstanceofInCatchBlock.this, badInstanceOf, ctx);
+                return TreeWalker.Action.SKIP_SUBTREE; // nothing else to report inside the instanceof
               }
+              return TreeWalker.Action.CONTINUE;
             }
           });
         }
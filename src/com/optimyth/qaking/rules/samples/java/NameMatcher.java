@@ -0,0 +1,77 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.java;
+
+import java.util.Collection;
+
+/**
+ * NameMatcher - Immutable set of names, matching a region of a string (like the last segment
+ * of a qualified name "a.b.foo") without building a substring for it.
+ * <p/>
+ * Names are stored in an open-addressing table (linear probing, at most half full), so matching
+ * takes the same time for one configured name or thousands: hash the region, and compare
+ * with the (usually single) candidate in its slot.
+ * Usage:
+ * <pre>
+ * NameMatcher forbidden = NameMatcher.of(names);
+ * if(forbidden.matches(image, image.lastIndexOf('.') + 1, image.length())) ...
+ * </pre>
+ */
+final class NameMatcher {
+
+  private static final NameMatcher EMPTY = new NameMatcher(new String[1], new int[1]);
+
+  private final String[] names;
+  private final int[] hashes;
+  private final int mask;
+
+  private NameMatcher(String[] names, int[] hashes) {
+    this.names = names;
+    this.hashes = hashes;
+    this.mask = names.length - 1;
+  }
+
+  /** Matcher for the given names (null or empty names are ignored) */
+  static NameMatcher of(Collection<String> names) {
+    if(names.isEmpty()) return EMPTY;
+    int capacity = Integer.highestOneBit(names.size() * 2 - 1) << 1;
+    String[] table = new String[capacity];
+    int[] hashes = new int[capacity];
+    for(String name : names) {
+      if(name == null || name.length() == 0) continue;
+      int h = hash(name, 0, name.length());
+      int i = h & (capacity - 1);
+      while(table[i] != null && !table[i].equals(name)) i = (i + 1) & (capacity - 1);
+      table[i] = name;
+      hashes[i] = h;
+    }
+    return new NameMatcher(table, hashes);
+  }
+
+  /** True if s.substring(from, to) is one of the names (s could be null) */
+  boolean matches(String s, int from, int to) {
+    if(s == null || from >= to) return false;
+    int h = hash(s, from, to);
+    int len = to - from;
+    for(int i = h & mask; names[i] != null; i = (i + 1) & mask) {
+      String name = names[i];
+      if(hashes[i] == h && name.length() == len && s.regionMatches(from, name, 0, len)) return true;
+    }
+    return false;
+  }
+
+  /** True if s is one of the names */
+  boolean matches(String s) {
+    return s != null && matches(s, 0, s.length());
+  }
+
+  // Same as String.hashCode() on the region, with bits spread for the table index
+  private static int hash(String s, int from, int to) {
+    int h = 0;
+    for(int i = from; i < to; i++) h = 31 * h + s.charAt(i);
+    return h ^ (h >>> 16);
+  }
+}
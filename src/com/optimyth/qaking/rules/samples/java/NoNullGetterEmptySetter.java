@@ -10,33 +10,41 @@ import com.als.core.AbstractRule;
 import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
 import com.optimyth.qaking.highlevelapi.ast.oo.HLAMethod;
-import com.optimyth.qaking.highlevelapi.dsl.Query;
 
-import static com.optimyth.qaking.highlevelapi.dsl.Query.query;
 import static com.als.core.ast.NodePredicates.asNodePredicate; 
 import static com.optimyth.qaking.highlevelapi.matchers.HLAPredicates.methods;
 import static com.optimyth.qaking.java.hla.JavaPredicates.*;
+import static com.optimyth.qaking.rules.samples.java.FusedChecks.Kind.METHODS;
 
 /**
  * NoNullGetterEmptySetter - Sample rule that reports "trivial" getters/setters
  * (a setter with no body, or a getter with a trivial return null).
  * <p/>
- * This is very simple (a one-liner) with the Query API and the proper predicates.
+ * This is very simple with the proper predicates, run together with {@link FusedChecks}
+ * on the methods from {@link HlaKindIndex} (so no full traversal of the tree is needed).
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 19-11-2013
  */
 public class NoNullGetterEmptySetter extends AbstractRule {
-  // Find setters with empty body and report 'em
-  private final Query emptySetter = query().find(methods(isSetter))
-    .filter(asNodePredicate(emptyBody, HLAMethod.class)).report();
+  // Find setters with empty body, and getters that only return null, and report 'em.
+  // Both checks are run together on each method in the index shared by rules on same tree
+  private final FusedChecks checks = FusedChecks.builder()
+    .check("emptySetter", METHODS, methods(isSetter), asNodePredicate(emptyBody, HLAMethod.class))
+    .check("returnNullGetter", METHODS, methods(isGetter), asNodePredicate(strictReturnsNull, HLAMethod.class))
+    .build();
 
-  // Find getters that only return null and report 'em
-  private final Query returnNullGetter = query().find(methods(isGetter))
-    .filter(asNodePredicate(strictReturnsNull, HLAMethod.class)).report();
+  @Override public void initialize(RuleContext ctx) {
+    super.initialize(ctx);
+    getLogger().debug(checks.explain());
+  }
+
+  @Override public void postProcess(RuleContext ctx) {
+    HlaKindIndex.clear();
+    super.postProcess(ctx);
+  }
 
   @Override protected void visit(BaseNode root, RuleContext ctx) {
-    emptySetter.run(this, ctx, ctx.getHighLevelTree());
-    returnNullGetter.run(this, ctx, ctx.getHighLevelTree());
+    checks.run(this, ctx);
   }
 }
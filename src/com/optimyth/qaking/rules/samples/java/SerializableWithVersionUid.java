@@ -78,7 +78,7 @@ public class SerializableWithVersionUid extends AbstractRule {
   };
 
   // Find direct serializable classes that do not provide a proper serialVersionUID
-  Query serializableNoVersionUID = Query.query()
+  private final Query serializableNoVersionUID = Query.query()
     .find(isSerializable).filter(isClass) // serializable class (abstract or not)
     .filter(noPrivateSerialVersionUID) // with no private static final long serialVersionUID
     .report();
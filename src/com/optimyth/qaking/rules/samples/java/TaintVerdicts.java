@@ -0,0 +1,205 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.java;
+
+import com.als.core.ast.BaseNode;
+import com.als.core.ast.NodePredicate;
+import com.als.core.ast.TreeNode;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.optimyth.qaking.java.tainting.StringConcatTaintingPropagation;
+import com.optimyth.qaking.rules.samples.util.IdentityLru;
+
+import java.util.Map;
+import java.util.Set;
+
+import static com.als.core.ast.NodePredicates.type;
+import static com.als.core.ast.NodePredicates.types;
+
+/**
+ * TaintVerdicts - Tainting propagation results for the expressions checked on a source file
+ * (like the SQL passed to JDBC calls in {@link AvoidConcatJdbcStatement}), shared by all the Java rules
+ * asking for the same file.
+ * <p/>
+ * Each verdict is remembered for the expression node, so a rule checking an expression already checked by
+ * another rule needs no propagation. When the expression is a bare name of a local variable that is declared
+ * once in its method and never assigned again (effectively final), the verdict is remembered for the variable
+ * declaration instead: its value is the same on every use, so many JDBC calls sharing the same SQL variable need
+ * a single propagation. Reassigned variables (whose value depends on the assignment reaching each use), names
+ * declared more than once in the method, fields and parameters are propagated for each expression.
+ * <p/>
+ * Verdicts are keyed by AST root (see {@link IdentityLru}). Rules using them must {@link #clear} them
+ * in postProcess, so no AST is retained after the analysis. Each instance counts the propagations done
+ * and the verdicts reused, and the time spent propagating, see {@link #toString()}.
+ * Usage:
+ * <pre>
+ * TaintVerdicts verdicts = TaintVerdicts.of(root);
+ * if(verdicts.isTainted(arg)) ...
+ * </pre>
+ */
+final class TaintVerdicts {
+
+  private static final NodePredicate INCREMENT = types("PreIncrementExpression", "PreDecrementExpression", "PostfixExpression");
+
+  private static final IdentityLru<BaseNode, TaintVerdicts> byRoot = new IdentityLru<BaseNode, TaintVerdicts>();
+
+  // Variables declared and assigned in each method
+  private final Map<BaseNode, MethodVariables> methods = Maps.newIdentityHashMap();
+  // Verdicts by expression, or by declaration (VariableDeclaratorId) for effectively final local variables
+  private final Map<BaseNode, Boolean> verdicts = Maps.newIdentityHashMap();
+
+  private int propagations;
+  private int reused;
+  private long propagationNanos;
+
+  private TaintVerdicts() {}
+
+  /** Verdicts for the source file with the given AST root */
+  static TaintVerdicts of(BaseNode root) {
+    TaintVerdicts verdicts = byRoot.get(root);
+    // if two rules create it at the same time, one of them just loses its verdicts
+    if(verdicts == null) verdicts = byRoot.put(root, new TaintVerdicts());
+    return verdicts;
+  }
+
+  /** Drop all cached verdicts (and the ASTs they reference) */
+  static void clear() {
+    byRoot.clear();
+  }
+
+  /** Returns true if expression depends on user-controlled input (concatenated with tainted strings) */
+  synchronized boolean isTainted(TreeNode expr) {
+    if(expr.isNull()) return false;
+    BaseNode declaration = effectivelyFinalLocal(expr);
+    BaseNode key = declaration != null ? declaration : expr.get();
+
+    Boolean tainted = verdicts.get(key);
+    if(tainted == null) {
+      tainted = propagate(expr);
+      verdicts.put(key, tainted);
+    } else {
+      reused++;
+    }
+    return tainted;
+  }
+
+  private boolean propagate(TreeNode expr) {
+    long start = System.nanoTime();
+    try {
+      return new StringConcatTaintingPropagation().isTainted(expr);
+    } finally {
+      propagations++;
+      propagationNanos += System.nanoTime() - start;
+    }
+  }
+
+  /** Time spent propagating tainting, in milliseconds */
+  synchronized long getPropagationMillis() {
+    return propagationNanos / 1000000L;
+  }
+
+  @Override public synchronized String toString() {
+    return "TaintVerdicts: " + propagations + " propagations (" + getPropagationMillis() + " ms), " +
+      reused + " verdicts reused";
+  }
+
+  // If expr is a bare variable name (Expression / PrimaryExpression / PrimaryPrefix / Name) in a method,
+  // return the variable name; null otherwise
+  private String localVariable(TreeNode expr) {
+    TreeNode primary = expr.isTypeName("Expression") ? expr.child(0) : expr;
+    if(!primary.isTypeName("PrimaryExpression") || primary.child(1).isNotNull()) return null; // with suffixes
+    TreeNode prefix = primary.child(0);
+    if(!prefix.isTypeName("PrimaryPrefix") || prefix.child(1).isNotNull()) return null;
+    TreeNode name = prefix.child(0);
+    if(!name.isTypeName("Name")) return null;
+    String image = name.getImage();
+    if(image == null || image.indexOf('.') != -1) return null; // qualified name
+
+    return image;
+  }
+
+  // Declaration (VariableDeclaratorId) of the effectively final local variable that expr is a bare name of;
+  // null otherwise
+  private BaseNode effectivelyFinalLocal(TreeNode expr) {
+    String var = localVariable(expr);
+    TreeNode method = expr.ancestor("MethodDeclaration");
+    if(var == null || method.isNull()) return null;
+
+    BaseNode declaration = getMethodVariables(method.get()).getEffectivelyFinal(var);
+    if(declaration == null) return null;
+    // expr must be in the scope of the local variable, after the declaration (otherwise the name refers to a field;
+    // uses in the same line are not memoized)
+    TreeNode scope = TreeNode.on(declaration).ancestor("LocalVariableDeclaration").parent().parent();
+    boolean inScope = isDescendant(expr.get(), scope.get()) && expr.get().getBeginLine() > declaration.getBeginLine();
+    return inScope ? declaration : null;
+  }
+
+  private MethodVariables getMethodVariables(BaseNode method) {
+    MethodVariables variables = methods.get(method);
+    if(variables == null) {
+      variables = new MethodVariables();
+      for(BaseNode id : TreeNode.on(method).findAll(type("VariableDeclaratorId"))) {
+        TreeNode local = TreeNode.on(id).ancestor("LocalVariableDeclaration");
+        boolean isLocal = local.isNotNull() && local.ancestor("MethodDeclaration").get() == method;
+        variables.declare(id.getImage(), isLocal ? id : null);
+      }
+      for(BaseNode op : TreeNode.on(method).findAll(type("AssignmentOperator"))) {
+        variables.assign(assignedName(TreeNode.on(op).parent().child(0)));
+      }
+      for(BaseNode inc : TreeNode.on(method).findAll(INCREMENT)) {
+        variables.assign(assignedName(TreeNode.on(inc)));
+      }
+      methods.put(method, variables);
+    }
+    return variables;
+  }
+
+  // First name in the assignment target (x in x = ..., x.f = ..., x[i] = ...)
+  private static String assignedName(TreeNode target) {
+    TreeNode name = target.find("Name");
+    String image = name.isNull() ? null : name.getImage();
+    if(image == null) return null;
+    int dot = image.indexOf('.');
+    return dot == -1 ? image : image.substring(0, dot);
+  }
+
+  private static boolean isDescendant(BaseNode node, BaseNode ancestor) {
+    for(TreeNode n = TreeNode.on(node); n.isNotNull(); n = n.parent()) {
+      if(n.get() == ancestor) return true;
+    }
+    return false;
+  }
+
+  // The variables declared and assigned in a method: a name is effectively final when it is declared once,
+  // as a local variable, and never assigned after its declaration
+  private static final class MethodVariables {
+    private final Map<String, BaseNode> locals = Maps.newHashMap();
+    private final Set<String> excluded = Sets.newHashSet(); // declared more than once, not local, or assigned
+
+    /** Register a variable declared in method; declaration is null if not a local variable (e.g. a parameter) */
+    void declare(String name, BaseNode declaration) {
+      if(name == null || excluded.contains(name)) return;
+      if(declaration == null || locals.containsKey(name)) {
+        locals.remove(name);
+        excluded.add(name);
+      } else {
+        locals.put(name, declaration);
+      }
+    }
+
+    /** Register an assignment (or increment) on the variable with the given name */
+    void assign(String name) {
+      if(name == null) return;
+      locals.remove(name);
+      excluded.add(name);
+    }
+
+    /** Declaration for name if it is an effectively final local variable; null otherwise */
+    BaseNode getEffectivelyFinal(String name) {
+      return excluded.contains(name) ? null : locals.get(name);
+    }
+  }
+}
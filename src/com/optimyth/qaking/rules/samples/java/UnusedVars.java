@@ -14,6 +14,7 @@ import com.als.core.util.NodeToStr;
 import com.optimyth.qaking.highlevelapi.dsl.Query;
 import com.optimyth.qaking.highlevelapi.nodeset.ToViolation;
 import com.optimyth.qaking.java.hla.ast.JavaVariable;
+import com.optimyth.qaking.rules.samples.util.ReportedLines;
 
 import static com.als.core.ast.NodePredicates.*;
 import static com.optimyth.qaking.highlevelapi.dsl.Query.query;
@@ -22,6 +23,7 @@ import static com.optimyth.qaking.java.hla.JavaPredicates.*;
 
 /**
  * UnusedVars - Simple rule that looks for unused vars: local var, class field or formal parameter.
+ * Only the first unused var on each line is reported.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 19-11-2013
@@ -44,17 +46,18 @@ public class UnusedVars extends AbstractRule {
     parameterPred
   );
 
-  // What is unused var?
-  private static final Query unusedVars = query()
-    .find( varsPredicate )
-    // An unused var should not have initialization with side-effects
-    // (because then, declaration cannot be removed)
-    .filter(not(hasSideEffectInInitPred))
-    .filter(not(hasUsages))
-    .report( reportVarName );
-
-
   @Override protected void visit(BaseNode root, RuleContext ctx) {
+    // What is unused var?
+    Query unusedVars = query()
+      .find( varsPredicate )
+      // An unused var should not have initialization with side-effects
+      // (because then, declaration cannot be removed)
+      .filter(not(hasSideEffectInInitPred))
+      .filter(not(hasUsages))
+      // At most one violation per line (e.g. int a, b, c;), to keep the report small on legacy code
+      .filter(new ReportedLines().firstOnLine())
+      .report( reportVarName );
+
     unusedVars.run(this, ctx, ctx.getHighLevelTree()); // rule is simply query execution
   }
 
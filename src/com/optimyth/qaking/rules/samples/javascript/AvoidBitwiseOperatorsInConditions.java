@@ -37,7 +37,7 @@ public class AvoidBitwiseOperatorsInConditions extends AbstractJavaScriptRule {
   // bitwise operator that could be mistyped with equivalent logical operator (&& and ||)
   private static NodePredicate BITWISE_EXPR = getTypeImagePred("InfixExpression", "&", "|");
 
-  private Query forbiddenExpr = Query.query()
+  private final Query forbiddenExpr = Query.query()
     .find(CONDITION_EXPR)      // conditional expression
     .filter(has(BITWISE_EXPR)) // ... having a bitwise operator that could be mistyped
     .report();
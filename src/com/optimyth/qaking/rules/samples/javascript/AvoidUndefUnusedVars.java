@@ -89,9 +89,14 @@ public class AvoidUndefUnusedVars extends AbstractJavaScriptRule {
     this.knownGlobals = StringUtils.asSet( getProperty("knownGlobals", ""), ',' );
   }
 
+  @Override public void postProcess(RuleContext ctx) {
+    SymbolTables.clear();
+    super.postProcess(ctx);
+  }
+
   @Override protected void visit(BaseNode root, RuleContext ctx) {
-    // Build symbol table for this source unit
-    LocalSymbolTable symTable = LocalSymbolTable.build((JSNode)root);
+    // Symbol table for this source unit (built once, shared with other JavaScript rules)
+    LocalSymbolTable symTable = SymbolTables.of((JSNode)root);
 
     // Fetch configured globals in source code comment
     Set<String> configuredGlobals = getGlobals((JSNode) root);
@@ -8,6 +8,7 @@ package com.optimyth.qaking.rules.samples.javascript;
 
 import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
+import com.als.core.ast.NodePredicate;
 import com.als.core.ast.NodeVisitor;
 import com.als.core.ast.TreeNode;
 import com.als.js.rules.AbstractJavaScriptRule;
@@ -17,6 +18,7 @@ import com.optimyth.qaking.js.ast.JSNode;
 import com.optimyth.qaking.js.symbols.LocalSymbolTable;
 import com.optimyth.qaking.js.utils.ExpressionUtil;
 import com.optimyth.qaking.js.utils.FunctionUtil;
+import com.optimyth.qaking.rules.samples.util.TreeWalker;
 import es.als.util.StringUtils;
 import org.mozilla.javascript.Token;
 import org.mozilla.javascript.ast.Symbol;
@@ -25,7 +27,6 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.optimyth.qaking.js.utils.JavaScriptPredicates.*;
 
@@ -64,6 +65,11 @@ public class CodeInjection extends AbstractJavaScriptRule {
     }    
   }
 
+  @Override public void postProcess(RuleContext ctx) {
+    SymbolTables.clear();
+    super.postProcess(ctx);
+  }
+
   @Override protected void visit(BaseNode root, final RuleContext ctx) {
     TreeNode.on(root).accept(new NodeVisitor() {
       public void visit(BaseNode node) {
@@ -118,25 +124,19 @@ public class CodeInjection extends AbstractJavaScriptRule {
       if(FUNCTION_CALL.is(injectionPoint)) return true; // code is given by a function call, consider "tainted" code
 
       // Perform a rather simple static analysis to check if the injection point
-      // could be "tainted" with external input
-      final LocalSymbolTable symTab = LocalSymbolTable.build(call.rootForTechnology());
+      // could be "tainted" with external input (symbol table is built once per source file)
+      final LocalSymbolTable symTab = SymbolTables.of(call.rootForTechnology());
 
       if(IDENTIFIER.is(injectionPoint)) {
         return checkSymbol(injectionPoint, symTab);
         
       } else {
-        final AtomicBoolean hasVar = new AtomicBoolean(false);
-        injectionPoint.accept(new NodeVisitor() {
-          public void visit(BaseNode node) {
-            if(hasVar.get()) return;
-            if(IDENTIFIER.is(node)) {
-              JSNode item = (JSNode)node;
-              if(checkSymbol(item, symTab)) hasVar.set(true);
-            }
+        // Stop at the first var that could be tainted
+        return TreeWalker.has(injectionPoint, new NodePredicate() {
+          public boolean is(BaseNode node) {
+            return IDENTIFIER.is(node) && checkSymbol((JSNode)node, symTab);
           }
         });
-
-        return hasVar.get();
       }
     }
 
@@ -0,0 +1,41 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.javascript;
+
+import com.optimyth.qaking.js.ast.JSNode;
+import com.optimyth.qaking.js.symbols.LocalSymbolTable;
+import com.optimyth.qaking.rules.samples.util.IdentityLru;
+
+/**
+ * SymbolTables - Local symbol table for each JavaScript AST, built once and shared by all the
+ * JavaScript rules (and all the calls checked by a rule) on the same source file.
+ * <p/>
+ * Tables are keyed by AST root (see {@link IdentityLru}). Rules using them must {@link #clear} them
+ * in postProcess, so no AST is retained after the analysis.
+ * Usage:
+ * <pre>
+ * LocalSymbolTable symTab = SymbolTables.of(node.rootForTechnology());
+ * </pre>
+ */
+final class SymbolTables {
+
+  private static final IdentityLru<JSNode, LocalSymbolTable> byRoot = new IdentityLru<JSNode, LocalSymbolTable>();
+
+  private SymbolTables() {}
+
+  /** Symbol table for the JavaScript AST with the given root */
+  static LocalSymbolTable of(JSNode root) {
+    LocalSymbolTable symTab = byRoot.get(root);
+    // if two rules build it at the same time, both tables are equivalent
+    if(symTab == null) symTab = byRoot.put(root, LocalSymbolTable.build(root));
+    return symTab;
+  }
+
+  /** Drop all cached tables (and the ASTs they reference) */
+  static void clear() {
+    byRoot.clear();
+  }
+}
@@ -9,9 +9,9 @@ package com.optimyth.qaking.rules.samples.javascript;
 import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
 import com.als.core.ast.NodePredicate;
-import com.als.core.ast.NodeVisitor;
 import com.als.js.rules.AbstractJavaScriptRule;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.optimyth.qaking.codeanalysis.controlflow.ControlFlowNavigator;
 import com.optimyth.qaking.codeanalysis.controlflow.ControlFlowVisitor;
 import com.optimyth.qaking.codeanalysis.controlflow.model.DataFlowGraph;
@@ -19,8 +19,11 @@ import com.optimyth.qaking.codeanalysis.controlflow.model.DataFlowNode;
 import com.optimyth.qaking.codeanalysis.controlflow.model.IDataFlowNode;
 import com.optimyth.qaking.js.ast.JSNode;
 import com.optimyth.qaking.js.controlflow.builder.JavascriptControlFlowSupport;
+import com.optimyth.qaking.rules.samples.util.TreeWalker;
 
-import java.util.Set;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
 
 import static com.als.core.ast.NodePredicates.types;
 import static com.optimyth.qaking.js.utils.JavaScriptPredicates.FUNCTION;
@@ -28,6 +31,9 @@ import static com.optimyth.qaking.js.utils.JavaScriptPredicates.FUNCTION;
 /**
  * UnreachableCode - Sample rule that finds unreachable code, to show how to use control-flow
  * graph and constant
+ * <p/>
+ * Statements of each function (not including nested functions, checked on their own) are numbered once,
+ * and reachability is marked in a bitset, so cost is linear in the file size even for deeply nested callbacks.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 16-01-2014
@@ -45,43 +51,54 @@ public class UnreachableCode extends AbstractJavaScriptRule {
   @Override protected void visit(BaseNode root, final RuleContext ctx) {
     if(!(root instanceof JSNode)) return;
 
-    // process all function definitions
-    ((JSNode)root).accept(new NodeVisitor() {
-      public void visit(BaseNode function) {
+    // process all function definitions (nested functions included, each one once)
+    TreeWalker.walk(root, new TreeWalker.Visitor() {
+      public TreeWalker.Action enter(BaseNode function) {
         if(FUNCTION.is(function)) {
           checkUnused((JSNode)function, ctx);
         }
+        return TreeWalker.Action.CONTINUE;
       }
     });
   }
 
-  // To find unused statements in given function, first all statements of interest are registered,
-  // then the control flow graph
-  private void checkUnused(JSNode function, RuleContext ctx) {
+  // To find unused statements in given function, first all statements of interest are numbered,
+  // then the control flow graph is traversed, marking the statements reached
+  private void checkUnused(final JSNode function, RuleContext ctx) {
     // JavascriptControlFlowSupport.getFlowGraph() compiles control-flow graph for FunctionNode
     DataFlowGraph<DataFlowNode> cfg = new JavascriptControlFlowSupport().getFlowGraph(function);
 
-    // Get all statements of interest in current function
-    final Set<BaseNode> statements = Sets.newHashSetWithExpectedSize(128);
-    function.accept(new NodeVisitor() { 
-      public void visit(BaseNode node) {
-        if(STATEMENT.is(node)) statements.add(node);
+    // Number all statements of interest in current function, in document order.
+    // Nested functions are skipped (their statements are checked with their own control-flow graph)
+    final List<BaseNode> statements = Lists.newArrayList();
+    final Map<BaseNode, Integer> numbers = Maps.newIdentityHashMap();
+    TreeWalker.walk(function, new TreeWalker.Visitor() {
+      public TreeWalker.Action enter(BaseNode node) {
+        if(node != function && FUNCTION.is(node)) return TreeWalker.Action.SKIP_SUBTREE;
+        if(STATEMENT.is(node)) {
+          numbers.put(node, statements.size());
+          statements.add(node);
+        }
+        return TreeWalker.Action.CONTINUE;
       }
     });
+    if(statements.isEmpty()) return;
 
-    // Remove all statements reachable traversing control-flow graph in depth-first order
+    // Mark all statements reachable traversing control-flow graph in depth-first order
     // (breadth-first should visit same statements).
     // Start at the start node of the control-flow graph for function, up to the end
+    final BitSet reached = new BitSet(statements.size());
     ControlFlowNavigator.forwardDFT(cfg, new ControlFlowVisitor() {
       public boolean onDataFlowNode(IDataFlowNode node) {
-        statements.remove(node.getAstNode()); // reachable from function entry point, remove from set
+        Integer number = numbers.get(node.getAstNode());
+        if(number != null) reached.set(number); // reachable from function entry point
         return true; // navigation should continue while pending nodes
       }
     });
 
-    // Statements remaining up to this point are unreachable, report them
-    for(BaseNode unreached : statements) {
-      reportViolation(ctx, unreached);
+    // Statements not reached up to this point are unreachable, report them (in source order)
+    for(int i = reached.nextClearBit(0); i < statements.size(); i = reached.nextClearBit(i + 1)) {
+      reportViolation(ctx, statements.get(i));
     }
   }
 }
@@ -11,6 +11,8 @@ import com.als.core.RuleViolation;
 import com.als.core.ast.BaseNode;
 import com.als.core.rule.XPathRule;
 import com.optimyth.qaking.php.rules.ViolationFactory;
+import com.optimyth.qaking.rules.samples.util.CompiledXPath;
+import com.optimyth.qaking.rules.samples.util.XPathRuleDispatcher;
 
 /**
  * AvoidRefOnMultidimArray - Sample rule that shows how to extend an XPathRule
@@ -25,19 +27,49 @@ import com.optimyth.qaking.php.rules.ViolationFactory;
  * //UnaryExpression[ UnaryOperator[1][@Image='&'] ]
  * [ count(UnaryExpression/PostfixExpression/PostfixExpressionArrayIndexSuffix) > 1 ]
  * </pre>
+ * The expression is compiled into a direct tree matcher (see {@link CompiledXPath}), matched in a single
+ * traversal shared with other compiled XPath rules (see {@link XPathRuleDispatcher}); set property
+ * <em>compiledXPath</em> to false to evaluate it with the XPath interpreter.
  *
  * @author <a href="mailto:lrodriguez@optimyth.org">lrodriguez</a>
  * @version 09-02-2014
  */
-public class AvoidRefOnMultidimArray extends XPathRule {
+public class AvoidRefOnMultidimArray extends XPathRule implements XPathRuleDispatcher.DispatchedRule {
   
   private static final String REF_ON_MULTIDIM_ARRAY =
     "//UnaryExpression[ UnaryOperator[1][@Image='&'] ]" +
     "[ count(UnaryExpression/PostfixExpression/PostfixExpressionArrayIndexSuffix) > 1 ]";
   
+  private static final String TECHNOLOGY = "php";
+
+  private CompiledXPath compiled;
+
   @Override public void initialize(RuleContext ctx) {
     addProperty(XPATH_PROP, REF_ON_MULTIDIM_ARRAY);
     super.initialize(ctx);
+    // Evaluate XPath with a compiled matcher, unless disabled in 'compiledXPath' property
+    compiled = getProperty("compiledXPath", true) ? CompiledXPath.compile(getProperty(XPATH_PROP, REF_ON_MULTIDIM_ARRAY)) : null;
+    if(compiled != null) XPathRuleDispatcher.register(TECHNOLOGY, this);
+  }
+
+  @Override public void postProcess(RuleContext ctx) {
+    XPathRuleDispatcher.unregister(TECHNOLOGY, this);
+    super.postProcess(ctx);
+  }
+
+  @Override protected void visit(BaseNode root, RuleContext ctx) {
+    if(compiled == null) {
+      super.visit(root, ctx); // XPath interpreter
+      return;
+    }
+    // Matches are received from the single traversal shared with other compiled XPath rules
+    XPathRuleDispatcher.dispatch(TECHNOLOGY, this, root, ctx);
+  }
+
+  public CompiledXPath getCompiledXPath() { return compiled; }
+
+  public void onMatch(BaseNode refExpr, RuleContext ctx) {
+    reportViolation(refExpr, ctx);
   }
 
   @Override protected RuleViolation reportViolation(BaseNode node, RuleContext ctx) {
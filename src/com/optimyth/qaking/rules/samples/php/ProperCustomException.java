@@ -3,12 +3,11 @@ package com.optimyth.qaking.rules.samples.php;
 import com.als.core.RuleContext;
 import com.als.core.ast.BaseNode;
 import com.als.core.ast.NodePredicate;
-import com.als.core.ast.NodeVisitor;
-import com.als.core.ast.TreeNode;
 import com.optimyth.qaking.php.ast.PhpNode;
 import com.optimyth.qaking.php.rules.AbstractPhpRule;
 import com.optimyth.qaking.php.util.ClassUtil;
 import com.optimyth.qaking.php.util.PhpPredicates;
+import com.optimyth.qaking.rules.samples.util.TreeWalker;
 import es.als.util.StringUtils;
 
 import static com.optimyth.qaking.php.util.FunctionUtil.getFunctionName;
@@ -33,14 +32,16 @@ public class ProperCustomException extends AbstractPhpRule {
     // Report violation on class extending exception ("custom exception"),
     // without constructor calling superclass' constructor
     // or with no __toString() method
-    TreeNode.on(root).accept(new NodeVisitor() {
-      public void visit(BaseNode node) {
-        if (CLASS_DECL.is(node) && extendsFromException((PhpNode) node)) {
+    TreeWalker.walk(root, new TreeWalker.Visitor() {
+      public TreeWalker.Action enter(BaseNode node) {
+        if (!CLASS_DECL.is(node)) return TreeWalker.Action.CONTINUE;
+        if (extendsFromException((PhpNode) node)) {
           PhpNode clazz = (PhpNode) node;
           if (!checkConstructor(clazz) || !checkToString(clazz)) {
             reportViolation(ctx, node);
           }
         }
+        return TreeWalker.Action.CONTINUE; // classes declared inside methods (nested or anonymous) are checked too
       }
     });
   }
@@ -60,7 +61,7 @@ public class ProperCustomException extends AbstractPhpRule {
     if (cons.isNull() || !cons.has(STATEMENT_BLOCK)) return false; // no constructor means violation
 
     // Find a method call to parent::__construct (PHP5) or old syntax (PHP4) parent::ParentClassName
-    return cons.child(STATEMENT_BLOCK).has(new NodePredicate() {
+    return TreeWalker.has(cons.child(STATEMENT_BLOCK), new NodePredicate() {
       public boolean is(BaseNode node) {
         if(PhpPredicates.methodCallsPred.is(node)) {
           PhpNode pexp = (PhpNode)node;
@@ -75,11 +76,12 @@ public class ProperCustomException extends AbstractPhpRule {
     });
   }
 
-  // Check if __toString() method is provided
+  // Check if __toString() method is provided (function bodies are not searched)
   private boolean checkToString(PhpNode clazz) {
-    return clazz.has(new NodePredicate() {
-      public boolean is(BaseNode function) {
-        return FUNCTION_DECL.is(function) && "__toString".equals(getFunctionName(function));
+    return TreeWalker.walk(clazz, new TreeWalker.Visitor() {
+      public TreeWalker.Action enter(BaseNode function) {
+        if(!FUNCTION_DECL.is(function)) return TreeWalker.Action.CONTINUE;
+        return "__toString".equals(getFunctionName(function)) ? TreeWalker.Action.STOP : TreeWalker.Action.SKIP_SUBTREE;
       }
     });
   }
@@ -0,0 +1,388 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.util;
+
+import com.als.core.RuleContext;
+import com.als.core.ast.BaseNode;
+import com.als.core.ast.TreeNode;
+import com.google.common.collect.Lists;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * CompiledXPath - XPath expression (in a common subset) compiled into a direct tree matcher, so XPath rules
+ * can avoid the generic XPath interpreter.
+ * <p/>
+ * Supported subset: absolute location paths (<code>//A/B</code>, <code>/A//B</code>, optionally starting
+ * with <code>qak:hla()</code> to evaluate on the high-level tree), with element names or <code>*</code>,
+ * and predicates of the form:
+ * <ul>
+ *   <li><code>[@Attr='value']</code> - attribute equality (attribute read with getAttr() / isAttr() getter)</li>
+ *   <li><code>[Rel/Path]</code> - some node is reached by the relative path (child axis only)</li>
+ *   <li><code>[count(Rel/Path) &gt; n]</code> - number of nodes reached compared with n (=, !=, &lt;, &lt;=, &gt;, &gt;=)</li>
+ *   <li><code>[n]</code> - position, only as first predicate of a step in a relative path</li>
+ * </ul>
+ * {@link #compile} returns null for any other expression, so the rule should fall back to the XPath interpreter.
+ * <p/>
+ * A node matches when its type name is the one in the last step, its predicates hold, and its ancestors match
+ * the previous steps; so a single traversal evaluates the expression, and several expressions could be matched
+ * on each node of the same traversal. Getters for attributes are looked up once per node class.
+ * Usage:
+ * <pre>
+ * CompiledXPath compiled = CompiledXPath.compile(xpath); // in initialize
+ * ...
+ * for(BaseNode node : compiled.evaluate(root, ctx)) reportViolation(node, ctx);
+ * </pre>
+ */
+public final class CompiledXPath {
+
+  private static final String HLA_PREFIX = "qak:hla()";
+
+  private final String xpath;
+  private final boolean highLevel;
+  private final Step[] path;
+
+  private CompiledXPath(String xpath, boolean highLevel, Step[] path) {
+    this.xpath = xpath;
+    this.highLevel = highLevel;
+    this.path = path;
+  }
+
+  /** Compile xpath, or return null if not in the supported subset */
+  public static CompiledXPath compile(String xpath) {
+    if(xpath == null) return null;
+    try {
+      return new Parser(xpath).parse();
+    } catch(IllegalArgumentException unsupported) {
+      return null;
+    }
+  }
+
+  /** True if expression is evaluated on the high-level tree (<code>qak:hla()</code> prefix) */
+  public boolean isHighLevel() { return highLevel; }
+
+  /** Type name of the nodes matched (the last step), or null for any type (<code>*</code>) */
+  public String getTargetType() { return path[path.length - 1].name; }
+
+  /** Tree the expression is evaluated on, for the source file with the given (low-level) root */
+  public BaseNode getTree(BaseNode root, RuleContext ctx) {
+    return highLevel ? ctx.getHighLevelTree() : root;
+  }
+
+  /** Nodes matched, in document order */
+  public List<BaseNode> evaluate(BaseNode root, RuleContext ctx) {
+    BaseNode tree = getTree(root, ctx);
+    if(tree == null) return Collections.emptyList();
+    final List<BaseNode> matched = Lists.newArrayList();
+    TreeWalker.walk(tree, new TreeWalker.Visitor() {
+      public TreeWalker.Action enter(BaseNode node) {
+        if(matches(node)) matched.add(node);
+        return TreeWalker.Action.CONTINUE;
+      }
+    });
+    return matched;
+  }
+
+  /** True if node is selected by the expression (evaluated on the tree containing node) */
+  public boolean matches(BaseNode node) {
+    return matchStep(TreeNode.on(node), path.length - 1);
+  }
+
+  // node matches step k, and its ancestors match the previous steps
+  private boolean matchStep(TreeNode node, int k) {
+    Step step = path[k];
+    if(!step.test(node.get())) return false;
+    TreeNode parent = node.parent();
+    if(k == 0) return step.descendant || parent.isNull(); // "/A" matches the root only
+    if(!step.descendant) return parent.isNotNull() && matchStep(parent, k - 1);
+    for(TreeNode ancestor = parent; ancestor.isNotNull(); ancestor = ancestor.parent()) {
+      if(matchStep(ancestor, k - 1)) return true;
+    }
+    return false;
+  }
+
+  @Override public String toString() { return xpath; }
+
+  // Step in a location path: axis, name test (null for any) and predicates
+  private static final class Step {
+    private final boolean descendant;
+    private final String name;
+    private final int position; // 0 for no positional predicate
+    private final Predicate[] predicates;
+
+    private Step(boolean descendant, String name, int position, Predicate[] predicates) {
+      this.descendant = descendant;
+      this.name = name;
+      this.position = position;
+      this.predicates = predicates;
+    }
+
+    private boolean testName(BaseNode node) {
+      return name == null || name.equals(node.getTypeName());
+    }
+
+    // name and predicates, except position
+    private boolean test(BaseNode node) {
+      if(!testName(node)) return false;
+      for(Predicate predicate : predicates) {
+        if(!predicate.is(node)) return false;
+      }
+      return true;
+    }
+  }
+
+  private static abstract class Predicate {
+    abstract boolean is(BaseNode node);
+  }
+
+  // [@Attr='value']
+  private static final class AttributeEquals extends Predicate {
+    private final String attribute;
+    private final String value;
+
+    private AttributeEquals(String attribute, String value) {
+      this.attribute = attribute;
+      this.value = value;
+    }
+
+    boolean is(BaseNode node) {
+      Object v = Attributes.get(node, attribute);
+      return v != null && value.equals(String.valueOf(v));
+    }
+  }
+
+  // [count(Rel/Path) op n], or [Rel/Path] (same as count(Rel/Path) > 0)
+  private static final class PathCount extends Predicate {
+    private final Step[] steps;
+    private final String op;
+    private final int n;
+
+    private PathCount(Step[] steps, String op, int n) {
+      this.steps = steps;
+      this.op = op;
+      this.n = n;
+    }
+
+    boolean is(BaseNode node) {
+      // no need to count beyond n + 1 to compare with n
+      int count = count(TreeNode.on(node), 0, n + 1);
+      if(">".equals(op)) return count > n;
+      if(">=".equals(op)) return count >= n;
+      if("<".equals(op)) return count < n;
+      if("<=".equals(op)) return count <= n;
+      if("=".equals(op)) return count == n;
+      return count != n;
+    }
+
+    // nodes reached from node by steps[k..], up to limit (child axis only, so each node is reached once)
+    private int count(TreeNode node, int k, int limit) {
+      if(k == steps.length) return 1;
+      Step step = steps[k];
+      int count = 0, position = 0;
+      for(int i = 0; count < limit; i++) {
+        TreeNode child = node.child(i);
+        if(child.isNull()) break;
+        if(!step.testName(child.get())) continue;
+        if(step.position != 0 && ++position != step.position) continue;
+        if(step.test(child.get())) count += count(child, k + 1, limit - count);
+        if(step.position != 0) break;
+      }
+      return count;
+    }
+  }
+
+  // Attribute getters by node class
+  private static final class Attributes {
+    private static final Object NO_GETTER = new Object();
+    private static final ConcurrentMap<Class<?>, ConcurrentMap<String, Object>> getters =
+      new ConcurrentHashMap<Class<?>, ConcurrentMap<String, Object>>();
+
+    private static Object get(BaseNode node, String attribute) {
+      ConcurrentMap<String, Object> byName = getters.get(node.getClass());
+      if(byName == null) {
+        byName = new ConcurrentHashMap<String, Object>();
+        ConcurrentMap<String, Object> previous = getters.putIfAbsent(node.getClass(), byName);
+        if(previous != null) byName = previous;
+      }
+      Object getter = byName.get(attribute);
+      if(getter == null) {
+        getter = findGetter(node.getClass(), attribute);
+        byName.put(attribute, getter);
+      }
+      if(getter == NO_GETTER) return null;
+      try {
+        return ((Method)getter).invoke(node);
+      } catch(Exception e) {
+        return null;
+      }
+    }
+
+    private static Object findGetter(Class<?> type, String attribute) {
+      for(String prefix : new String[] {"get", "is"}) {
+        try {
+          Method m = type.getMethod(prefix + attribute);
+          if(m.getReturnType() != Void.TYPE) return m;
+        } catch(NoSuchMethodException e) {
+          // try next prefix
+        }
+      }
+      return NO_GETTER;
+    }
+  }
+
+  // Recursive-descent parser for the supported subset, throwing IllegalArgumentException for anything else
+  private static final class Parser {
+    private final String s;
+    private int pos = 0;
+
+    private Parser(String s) { this.s = s; }
+
+    private CompiledXPath parse() {
+      skipWs();
+      boolean highLevel = s.startsWith(HLA_PREFIX, pos);
+      if(highLevel) pos += HLA_PREFIX.length();
+
+      List<Step> steps = Lists.newArrayList();
+      skipWs();
+      if(!peek('/')) throw unsupported();
+      while(peek('/')) {
+        pos++;
+        boolean descendant = peek('/');
+        if(descendant) pos++;
+        steps.add(step(descendant, false));
+        skipWs();
+      }
+      if(pos != s.length()) throw unsupported();
+      return new CompiledXPath(s, highLevel, steps.toArray(new Step[steps.size()]));
+    }
+
+    private Step step(boolean descendant, boolean relative) {
+      skipWs();
+      String name;
+      if(peek('*')) {
+        pos++;
+        name = null;
+      } else {
+        name = name();
+      }
+      return step(descendant, name, relative);
+    }
+
+    private Step step(boolean descendant, String name, boolean relative) {
+      int position = 0;
+      List<Predicate> predicates = Lists.newArrayList();
+      skipWs();
+      while(peek('[')) {
+        pos++;
+        skipWs();
+        if(pos < s.length() && Character.isDigit(s.charAt(pos))) {
+          // position allowed only as first predicate in relative paths
+          if(!relative || position != 0 || !predicates.isEmpty()) throw unsupported();
+          position = number();
+          if(position < 1) throw unsupported();
+        } else {
+          predicates.add(predicate());
+        }
+        skipWs();
+        expect(']');
+        skipWs();
+      }
+      return new Step(descendant, name, position, predicates.toArray(new Predicate[predicates.size()]));
+    }
+
+    private Predicate predicate() {
+      if(peek('@')) {
+        pos++;
+        String attribute = name();
+        skipWs();
+        expect('=');
+        skipWs();
+        return new AttributeEquals(attribute, string());
+      }
+      String name = name();
+      skipWs();
+      if("count".equals(name) && peek('(')) {
+        pos++;
+        Step[] steps = relativePath(step(false, true));
+        skipWs();
+        expect(')');
+        skipWs();
+        String op = op();
+        skipWs();
+        return new PathCount(steps, op, number());
+      }
+      return new PathCount(relativePath(step(false, name, true)), ">", 0);
+    }
+
+    private Step[] relativePath(Step first) {
+      List<Step> steps = Lists.newArrayList(first);
+      while(peek('/')) {
+        pos++;
+        if(peek('/')) throw unsupported(); // descendant axis in relative path
+        steps.add(step(false, true));
+        skipWs();
+      }
+      return steps.toArray(new Step[steps.size()]);
+    }
+
+    private String name() {
+      int start = pos;
+      while(pos < s.length()) {
+        char c = s.charAt(pos);
+        if(!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') break;
+        pos++;
+      }
+      if(pos == start || !Character.isLetter(s.charAt(start)) && s.charAt(start) != '_') throw unsupported();
+      return s.substring(start, pos);
+    }
+
+    private String string() {
+      if(!peek('\'') && !peek('"')) throw unsupported();
+      char quote = s.charAt(pos++);
+      int end = s.indexOf(quote, pos);
+      if(end == -1) throw unsupported();
+      String value = s.substring(pos, end);
+      pos = end + 1;
+      return value;
+    }
+
+    private int number() {
+      int start = pos;
+      while(pos < s.length() && Character.isDigit(s.charAt(pos))) pos++;
+      if(pos == start || pos - start > 9) throw unsupported();
+      return Integer.parseInt(s.substring(start, pos));
+    }
+
+    private String op() {
+      for(String op : new String[] {">=", "<=", "!=", ">", "<", "="}) {
+        if(s.startsWith(op, pos)) {
+          pos += op.length();
+          return op;
+        }
+      }
+      throw unsupported();
+    }
+
+    private boolean peek(char c) { return pos < s.length() && s.charAt(pos) == c; }
+
+    private void expect(char c) {
+      if(!peek(c)) throw unsupported();
+      pos++;
+    }
+
+    private void skipWs() {
+      while(pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+    }
+
+    private IllegalArgumentException unsupported() {
+      return new IllegalArgumentException("Unsupported XPath at " + pos + ": " + s);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * IdentityLru - Thread-safe cache for data computed on an AST (symbol tables, control-flow graphs, indexes...),
+ * keyed by an AST node compared by identity, and keeping only the most recently used entries.
+ * <p/>
+ * A source file parsed again gets a new AST, so it never sees data computed on the old one. As cached data
+ * references the AST, the cache is bounded: all the rules on a source file are executed one after another
+ * by the same worker, so only the entries for the files currently being analyzed are needed.
+ * {@link #DEFAULT_SIZE} gives room for two files per worker thread (and at least 8 files).
+ * Usage:
+ * <pre>
+ * private static final IdentityLru&lt;BaseNode, Index&gt; indexes = new IdentityLru&lt;BaseNode, Index&gt;();
+ * Index index = indexes.get(root);
+ * if(index == null) index = indexes.put(root, new Index(root));
+ * </pre>
+ */
+public final class IdentityLru<K, V> {
+
+  /** Default number of entries kept */
+  public static final int DEFAULT_SIZE = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+  private final Map<Key<K>, V> entries;
+
+  public IdentityLru() { this(DEFAULT_SIZE); }
+
+  public IdentityLru(final int maxEntries) {
+    this.entries = new LinkedHashMap<Key<K>, V>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Key<K>, V> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /** Value cached for key, or null if not cached */
+  public synchronized V get(K key) {
+    return key != null ? entries.get(new Key<K>(key)) : null;
+  }
+
+  /** Cache value for key (null key or value are ignored), returning value */
+  public synchronized V put(K key, V value) {
+    if(key != null && value != null) entries.put(new Key<K>(key), value);
+    return value;
+  }
+
+  /** Drop all cached entries */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  // Key compared by identity
+  private static final class Key<K> {
+    private final K key;
+
+    private Key(K key) { this.key = key; }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof Key && ((Key)o).key == key;
+    }
+
+    @Override public int hashCode() { return System.identityHashCode(key); }
+  }
+}
@@ -0,0 +1,205 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.util;
+
+import com.als.core.ast.BaseNode;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * NodeEventLog - The enter / leave events for the nodes of the type names of interest in an AST,
+ * recorded in a single traversal, indexed by type name, and replayed by each rule that needs them.
+ * <p/>
+ * Rules that only process certain node types register the type names (in initialize) in the {@link Registry}
+ * of their technology and, in their own visit, replay the log for the tree with their own RuleContext.
+ * The first rule asking for the log of a tree walks it once, recording the nodes of all the type names registered
+ * for the technology; a replay only touches the events of the types requested, so the cost for a rule is the
+ * number of nodes of its types, not the number of nodes in the tree. A rule that failed, or was not scheduled
+ * for the tree, does not affect the others. When a rule asks for types not recorded in the log
+ * (e.g. it was registered later), the log is recorded again.
+ * <p/>
+ * Rules should unregister their type names in postProcess, and clear the registry logs.
+ * Usage:
+ * <pre>
+ * private static final NodeEventLog.Registry LOGS = NodeEventLog.registry("cobol");
+ * public void initialize(RuleContext ctx) { ...; LOGS.register(TYPES); }
+ * public void postProcess(RuleContext ctx) { LOGS.unregister(TYPES); LOGS.clear(); ... }
+ * protected void visit(BaseNode root, RuleContext ctx) {
+ *   LOGS.of(root, TYPES).replay(TYPES, new TreeWalker.Visitor() { ... });
+ * }
+ * </pre>
+ */
+public final class NodeEventLog {
+
+  private static final ConcurrentMap<String, Registry> registries = new ConcurrentHashMap<String, Registry>();
+
+  /** Registry for technology (one per technology, so rules of other technologies do not add nodes to the logs) */
+  public static Registry registry(String technology) {
+    Registry registry = registries.get(technology);
+    if(registry == null) {
+      Registry previous = registries.putIfAbsent(technology, registry = new Registry());
+      if(previous != null) registry = previous;
+    }
+    return registry;
+  }
+
+  /** Type names registered by the rules of a technology, and the logs recorded for them */
+  public static final class Registry {
+    // type names registered, counted (several rules could register the same type)
+    private final Multiset<String> registered = ConcurrentHashMultiset.create();
+    private final IdentityLru<BaseNode, NodeEventLog> logs = new IdentityLru<BaseNode, NodeEventLog>();
+
+    private Registry() {}
+
+    public void register(Set<String> types) {
+      for(String type : types) registered.add(type);
+    }
+
+    public void unregister(Set<String> types) {
+      for(String type : types) registered.remove(type);
+    }
+
+    /** Log for tree with (at least) the events for types; null if tree is null */
+    public NodeEventLog of(BaseNode tree, Set<String> types) {
+      if(tree == null) return null;
+      NodeEventLog log = logs.get(tree);
+      if(log == null || !log.types.containsAll(types)) {
+        // if two rules record it at the same time, both logs are equivalent
+        Set<String> all = ImmutableSet.<String>builder().addAll(registered.elementSet()).addAll(types).build();
+        log = logs.put(tree, record(tree, all));
+      }
+      return log;
+    }
+
+    /** Drop the logs recorded */
+    public void clear() {
+      logs.clear();
+    }
+  }
+
+  // Events for the nodes of a type, in document order
+  private static final class Events {
+    private BaseNode[] nodes = new BaseNode[16];
+    // position of the event in the whole log
+    private int[] seq = new int[16];
+    // for an enter event, position (in the whole log) of the matching leave event; -1 for a leave event
+    private int[] leaveSeq = new int[16];
+    private int size;
+
+    private int add(BaseNode node, int pos, int leave) {
+      if(size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, size * 2);
+        seq = Arrays.copyOf(seq, size * 2);
+        leaveSeq = Arrays.copyOf(leaveSeq, size * 2);
+      }
+      nodes[size] = node;
+      seq[size] = pos;
+      leaveSeq[size] = leave;
+      return size++;
+    }
+  }
+
+  private final Set<String> types;
+  private final Map<String, Events> byType = new HashMap<String, Events>();
+
+  private NodeEventLog(Set<String> types) {
+    this.types = types;
+  }
+
+  private static NodeEventLog record(BaseNode tree, Set<String> types) {
+    final NodeEventLog log = new NodeEventLog(types);
+    TreeWalker.walk(tree, new TreeWalker.Visitor() {
+      private Events[] openEvents = new Events[64];
+      private int[] open = new int[64];
+      private int depth;
+      private int pos;
+
+      public TreeWalker.Action enter(BaseNode node) {
+        Events events = log.eventsFor(node);
+        if(events != null) {
+          if(depth == open.length) {
+            open = Arrays.copyOf(open, depth * 2);
+            openEvents = Arrays.copyOf(openEvents, depth * 2);
+          }
+          openEvents[depth] = events;
+          open[depth++] = events.add(node, pos++, 0);
+        }
+        return TreeWalker.Action.CONTINUE;
+      }
+
+      @Override public void leave(BaseNode node) {
+        Events events = log.eventsFor(node);
+        if(events != null) {
+          --depth;
+          openEvents[depth].leaveSeq[open[depth]] = pos;
+          events.add(node, pos++, -1);
+        }
+      }
+    });
+    return log;
+  }
+
+  // events for node type, or null if not logged
+  private Events eventsFor(BaseNode node) {
+    String type = node.getTypeName();
+    if(!types.contains(type)) return null;
+    Events events = byType.get(type);
+    if(events == null) byType.put(type, events = new Events());
+    return events;
+  }
+
+  /**
+   * Pass to visitor the events for the nodes with the given type names, in document order.
+   * SKIP_SUBTREE skips the events for the descendants of the node entered, and STOP ends the replay.
+   * Returns true if the visitor stopped the replay.
+   */
+  public boolean replay(Set<String> types, TreeWalker.Visitor visitor) {
+    List<Events> lists = new ArrayList<Events>(types.size());
+    for(String type : types) {
+      Events events = byType.get(type);
+      if(events != null) lists.add(events);
+    }
+    int[] cursor = new int[lists.size()];
+
+    while(true) {
+      // next event in document order (merge of the events for each type)
+      int next = -1;
+      for(int l = 0; l < cursor.length; l++) {
+        Events events = lists.get(l);
+        if(cursor[l] < events.size && (next < 0 || events.seq[cursor[l]] < lists.get(next).seq[cursor[next]])) next = l;
+      }
+      if(next < 0) return false;
+
+      Events events = lists.get(next);
+      int i = cursor[next]++;
+      BaseNode node = events.nodes[i];
+      if(events.leaveSeq[i] < 0) {
+        visitor.leave(node);
+        continue;
+      }
+      TreeWalker.Action action = visitor.enter(node);
+      if(action == TreeWalker.Action.STOP) return true;
+      if(action == TreeWalker.Action.SKIP_SUBTREE) {
+        visitor.leave(node);
+        int end = events.leaveSeq[i];
+        for(int l = 0; l < cursor.length; l++) {
+          Events skipped = lists.get(l);
+          while(cursor[l] < skipped.size && skipped.seq[cursor[l]] <= end) cursor[l]++;
+        }
+      }
+    }
+  }
+}
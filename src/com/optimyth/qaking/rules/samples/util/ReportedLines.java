@@ -0,0 +1,48 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.util;
+
+import com.als.core.ast.BaseNode;
+import com.als.core.ast.NodePredicate;
+import com.als.core.ast.TreeNode;
+
+import java.util.BitSet;
+
+/**
+ * ReportedLines - Lines already reported by a rule in the current source file, so noisy rules
+ * (like unused variables) emit at most one violation per (rule, file, line).
+ * <p/>
+ * Create one instance per rule and source file (e.g. in the rule visit method). Lines are kept in a bitset,
+ * so memory does not grow with the number of violations. Nodes without line information are always accepted.
+ * Usage:
+ * <pre>
+ * ReportedLines reported = new ReportedLines();
+ * if(reported.add(node.getBeginLine())) addViolation(...);
+ * // or, in a query:
+ * query().find(...).filter(reported.firstOnLine()).report();
+ * </pre>
+ */
+public final class ReportedLines {
+
+  private final BitSet lines = new BitSet();
+
+  /** Register line as reported, returning false if it was already reported */
+  public boolean add(int line) {
+    if(line <= 0) return true;
+    if(lines.get(line)) return false;
+    lines.set(line);
+    return true;
+  }
+
+  /** Predicate matching nodes on a line not reported yet (registering it as reported) */
+  public NodePredicate firstOnLine() {
+    return new NodePredicate() {
+      public boolean is(BaseNode node) {
+        return add(TreeNode.on(node).findLine());
+      }
+    };
+  }
+}
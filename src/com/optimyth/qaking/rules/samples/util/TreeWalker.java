@@ -0,0 +1,113 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.util;
+
+import com.als.core.ast.BaseNode;
+import com.als.core.ast.NodePredicate;
+import com.als.core.ast.TreeNode;
+
+/**
+ * TreeWalker - Depth-first traversal of an AST where the visitor decides, for each node, whether to
+ * continue into its descendants, skip them, or stop the whole traversal.
+ * <p/>
+ * Unlike <code>TreeNode.accept(NodeVisitor)</code>, which visits every node, rules can stop as soon as
+ * the answer is known, or skip subtrees that cannot contain what they look for. The traversal uses an
+ * explicit stack, so deeply nested code does not overflow the call stack.
+ * Usage:
+ * <pre>
+ * TreeWalker.walk(root, new TreeWalker.Visitor() {
+ *   public TreeWalker.Action enter(BaseNode node) {
+ *     if(FUNCTION.is(node)) return TreeWalker.Action.SKIP_SUBTREE; // nested functions are not of interest
+ *     ...
+ *     return TreeWalker.Action.CONTINUE;
+ *   }
+ * });
+ * boolean found = TreeWalker.has(node, pred); // stops at first match
+ * </pre>
+ */
+public final class TreeWalker {
+
+  /** What to do after entering a node */
+  public enum Action {
+    /** Continue with the node descendants */
+    CONTINUE,
+    /** Do not visit the node descendants, continue with its next sibling */
+    SKIP_SUBTREE,
+    /** Stop the traversal */
+    STOP
+  }
+
+  /** Receives the nodes in document order */
+  public static abstract class Visitor {
+    /** Called when node is reached, before its descendants */
+    public abstract Action enter(BaseNode node);
+    /** Called after all descendants of node were processed (or skipped); not called when the traversal stops */
+    public void leave(BaseNode node) {}
+  }
+
+  private TreeWalker() {}
+
+  /** Walk the tree under root (included). Returns true if the visitor stopped the traversal */
+  public static boolean walk(BaseNode root, Visitor visitor) {
+    if(root == null) return false;
+
+    Action action = visitor.enter(root);
+    if(action == Action.STOP) return true;
+    if(action == Action.SKIP_SUBTREE) {
+      visitor.leave(root);
+      return false;
+    }
+
+    TreeNode[] path = new TreeNode[64];
+    int[] nextChild = new int[64];
+    int depth = 0;
+    path[0] = TreeNode.on(root);
+    nextChild[0] = 0;
+    while(depth >= 0) {
+      TreeNode child = path[depth].child(nextChild[depth]++);
+      if(child.isNull()) {
+        visitor.leave(path[depth--].get());
+        continue;
+      }
+      BaseNode node = child.get();
+      action = visitor.enter(node);
+      if(action == Action.STOP) return true;
+      if(action == Action.SKIP_SUBTREE) {
+        visitor.leave(node);
+        continue;
+      }
+      if(++depth == path.length) {
+        TreeNode[] grownPath = new TreeNode[path.length * 2];
+        System.arraycopy(path, 0, grownPath, 0, path.length);
+        path = grownPath;
+        int[] grown = new int[nextChild.length * 2];
+        System.arraycopy(nextChild, 0, grown, 0, nextChild.length);
+        nextChild = grown;
+      }
+      path[depth] = child;
+      nextChild[depth] = 0;
+    }
+    return false;
+  }
+
+  /** First node (in document order) under root, included, matching pred; null if none */
+  public static BaseNode find(BaseNode root, final NodePredicate pred) {
+    final BaseNode[] found = new BaseNode[1];
+    walk(root, new Visitor() {
+      public Action enter(BaseNode node) {
+        if(!pred.is(node)) return Action.CONTINUE;
+        found[0] = node;
+        return Action.STOP;
+      }
+    });
+    return found[0];
+  }
+
+  /** True if some node under root (included) matches pred, stopping at the first match */
+  public static boolean has(BaseNode root, NodePredicate pred) {
+    return find(root, pred) != null;
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * checKing - Scorecard for software development processes
+ * [C] Optimyth Software Technologies, 2009
+ */
+
+package com.optimyth.qaking.rules.samples.util;
+
+import com.als.core.RuleContext;
+import com.als.core.ast.BaseNode;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * XPathRuleDispatcher - Single traversal of each source file for all the registered XPath rules of a technology,
+ * with expressions compiled by {@link CompiledXPath}.
+ * <p/>
+ * Rules register themselves (in initialize) when their expression could be compiled, and call {@link #dispatch}
+ * in visit. The nodes with the type names of the last step of all the expressions registered for the technology
+ * are recorded in a single walk of the tree by {@link NodeEventLog}, indexed by type name; each rule only tests
+ * its expression on the recorded nodes of its type, and receives the matches with its own RuleContext.
+ * An expression with no type name in its last step (e.g. <code>//*[...]</code>) is tested on all the nodes,
+ * in a walk of its own.
+ * <p/>
+ * Rules should unregister themselves in postProcess (this drops the logs recorded for the technology).
+ * Usage:
+ * <pre>
+ * public void initialize(RuleContext ctx) {
+ *   ...
+ *   compiled = CompiledXPath.compile(xpath);
+ *   if(compiled != null) XPathRuleDispatcher.register(TECHNOLOGY, this);
+ * }
+ * public void postProcess(RuleContext ctx) { XPathRuleDispatcher.unregister(TECHNOLOGY, this); ... }
+ * protected void visit(BaseNode root, RuleContext ctx) {
+ *   if(compiled == null) super.visit(root, ctx); else XPathRuleDispatcher.dispatch(TECHNOLOGY, this, root, ctx);
+ * }
+ * public void onMatch(BaseNode node, RuleContext ctx) { reportViolation(node, ctx); }
+ * </pre>
+ */
+public final class XPathRuleDispatcher {
+
+  /** A rule with a compiled XPath expression, receiving the nodes matched */
+  public interface DispatchedRule {
+    /** Compiled expression for the rule */
+    CompiledXPath getCompiledXPath();
+    /** Called for each node matched, in document order */
+    void onMatch(BaseNode node, RuleContext ctx);
+  }
+
+  private XPathRuleDispatcher() {}
+
+  public static void register(String technology, DispatchedRule rule) {
+    Set<String> types = targetTypes(rule.getCompiledXPath());
+    if(!types.isEmpty()) NodeEventLog.registry(technology).register(types);
+  }
+
+  public static void unregister(String technology, DispatchedRule rule) {
+    NodeEventLog.Registry registry = NodeEventLog.registry(technology);
+    registry.unregister(targetTypes(rule.getCompiledXPath()));
+    registry.clear();
+  }
+
+  /** Match the rule expression on source file, passing the matches to the rule */
+  public static void dispatch(String technology, final DispatchedRule rule, BaseNode root, final RuleContext ctx) {
+    final CompiledXPath xpath = rule.getCompiledXPath();
+    BaseNode tree = xpath != null && root != null ? xpath.getTree(root, ctx) : null;
+    if(tree == null) return;
+
+    TreeWalker.Visitor matcher = new TreeWalker.Visitor() {
+      public TreeWalker.Action enter(BaseNode node) {
+        if(xpath.matches(node)) rule.onMatch(node, ctx);
+        return TreeWalker.Action.CONTINUE;
+      }
+    };
+    Set<String> types = targetTypes(xpath);
+    if(types.isEmpty()) {
+      TreeWalker.walk(tree, matcher); // any node could match, nothing to share with other rules
+    } else {
+      NodeEventLog.registry(technology).of(tree, types).replay(types, matcher);
+    }
+  }
+
+  private static Set<String> targetTypes(CompiledXPath xpath) {
+    String type = xpath != null ? xpath.getTargetType() : null;
+    return type != null ? Collections.singleton(type) : Collections.<String>emptySet();
+  }
+}